@@ -0,0 +1,230 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+public class Arguments {
+    /** Summary of the options, printed when the arguments cannot be parsed. */
+    public static final String USAGE =
+            "Usage: java -jar dsl-clc-formatter.jar [options] <file or directory>...\n" +
+            "\n" +
+            "Options:\n" +
+            "    --threads N              number of files formatted in parallel\n" +
+            "    --io-threads N           number of threads reading and writing files\n" +
+            "    --stats                  log statistics about the run when it finishes\n" +
+            "    --atomic-writes          replace changed files via a temporary file and a rename\n" +
+            "    --exclude GLOB           skip files and directories matching the glob\n" +
+            "    --cache DIR              skip files which are unchanged since they were last formatted\n" +
+            "    --paranoid               verify the SHA-1 of every cached language module jar\n" +
+            "    --merge-dependencies     load each language from a single merged archive\n" +
+            "    --memo-size MB           reuse the output of identical sources (0 disables it)\n" +
+            "    --incremental            reformat only what changed since the last run (with --cache)\n" +
+            "    --lang EXT               format standard input to standard output\n" +
+            "    --batch                  format length-prefixed records from standard input\n" +
+            "    --daemon PORT            serve formatting requests on the loopback port\n" +
+            "    --idle-timeout SECS      shut the daemon down after being idle\n" +
+            "    --connect PORT           forward the request to a daemon\n" +
+            "    --build-startup-archive  build a class data sharing archive\n" +
+            "    --use-startup-archive    relaunch with the class data sharing archive\n";
+
+    public final List<File> paths;
+    public final int threads;
+    public final int ioThreads;
+    public final boolean stats;
+    public final File cache;
+    public final boolean atomicWrites;
+    public final List<String> excludes;
+
+    /** Only format what changed since the previous output, as far as the formatter supports it. */
+    public final boolean incremental;
+
+    /** Language of the source read from standard input. */
+    public final String lang;
+    public final boolean batch;
+
+    public final int daemon;
+    public final int connect;
+    public final int idleTimeout;
+
+    public final boolean buildStartupArchive;
+
+    /** Relaunch with the start-up archive, for launchers which cannot pass its argument file. */
+    public final boolean useStartupArchive;
+
+    /** Verify the SHA-1 of every cached artifact, instead of trusting the manifest. */
+    public final boolean paranoid;
+
+    /** Load the classes of each language from a single merged archive. */
+    public final boolean mergeDependencies;
+
+    /** Megabytes of formatted output kept for identical sources, 0 to disable. */
+    public final int memoSize;
+
+    /** Arguments which are passed on to a daemon when running as a client. */
+    public final List<String> forwarded;
+
+    private Arguments(
+            final List<File> paths,
+            final int threads,
+            final int ioThreads,
+            final boolean stats,
+            final File cache,
+            final boolean atomicWrites,
+            final List<String> excludes,
+            final boolean incremental,
+            final String lang,
+            final boolean batch,
+            final int daemon,
+            final int connect,
+            final int idleTimeout,
+            final boolean buildStartupArchive,
+            final boolean useStartupArchive,
+            final boolean paranoid,
+            final boolean mergeDependencies,
+            final int memoSize,
+            final List<String> forwarded) {
+        this.paths = Collections.unmodifiableList(paths);
+        this.threads = threads;
+        this.ioThreads = ioThreads;
+        this.stats = stats;
+        this.cache = cache;
+        this.atomicWrites = atomicWrites;
+        this.excludes = Collections.unmodifiableList(excludes);
+        this.incremental = incremental;
+        this.lang = lang;
+        this.batch = batch;
+        this.daemon = daemon;
+        this.connect = connect;
+        this.idleTimeout = idleTimeout;
+        this.buildStartupArchive = buildStartupArchive;
+        this.useStartupArchive = useStartupArchive;
+        this.paranoid = paranoid;
+        this.mergeDependencies = mergeDependencies;
+        this.memoSize = memoSize;
+        this.forwarded = Collections.unmodifiableList(forwarded);
+    }
+
+    private static int parseCount(final String option, final String value) {
+        try {
+            final int count = Integer.parseInt(value);
+            if (count > 0) return count;
+        } catch (final NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    private static int parseSize(final String option, final String value) {
+        try {
+            final int size = Integer.parseInt(value);
+            if (size >= 0) return size;
+        } catch (final NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid value for " + option + ": " + value);
+    }
+
+    private static String nextValue(final String[] args, final int index) {
+        if (index + 1 >= args.length) {
+            throw new IllegalArgumentException("Missing value for " + args[index]);
+        }
+        return args[index + 1];
+    }
+
+    private static File resolve(final File workingDirectory, final String path) {
+        final File file = new File(path);
+        return file.isAbsolute() || workingDirectory == null ? file : new File(workingDirectory, path);
+    }
+
+    public static Arguments parse(final String[] args) {
+        return parse(args, null);
+    }
+
+    /** Parses the arguments, resolving relative paths against the provided working directory. */
+    public static Arguments parse(final String[] args, final File workingDirectory) {
+        final List<File> paths = new ArrayList<File>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int ioThreads = 4;
+        boolean stats = false;
+        File cache = null;
+        boolean atomicWrites = false;
+        final List<String> excludes = new ArrayList<String>(FileIterator.DEFAULT_EXCLUDES);
+        boolean incremental = false;
+        String lang = null;
+        boolean batch = false;
+        int daemon = 0;
+        int connect = 0;
+        int idleTimeout = 15 * 60;
+        boolean buildStartupArchive = false;
+        boolean useStartupArchive = false;
+        boolean paranoid = false;
+        boolean mergeDependencies = false;
+        int memoSize = 32;
+        final List<String> forwarded = new ArrayList<String>();
+
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (arg.equals("--daemon")) {
+                daemon = parseCount(arg, nextValue(args, i++));
+                continue;
+            } else if (arg.equals("--connect")) {
+                connect = parseCount(arg, nextValue(args, i++));
+                continue;
+            } else if (arg.equals("--idle-timeout")) {
+                idleTimeout = parseCount(arg, nextValue(args, i++));
+                continue;
+            } else if (arg.equals("--build-startup-archive")) {
+                buildStartupArchive = true;
+                continue;
+            } else if (arg.equals("--use-startup-archive")) {
+                useStartupArchive = true;
+                continue;
+            } else if (arg.equals("--paranoid")) {
+                paranoid = true;
+                continue;
+            } else if (arg.equals("--merge-dependencies")) {
+                mergeDependencies = true;
+                continue;
+            } else if (arg.equals("--memo-size")) {
+                memoSize = parseSize(arg, nextValue(args, i++));
+                continue;
+            }
+
+            forwarded.add(arg);
+            if (arg.equals("--threads")) {
+                threads = parseCount(arg, nextValue(args, i++));
+                forwarded.add(args[i]);
+            } else if (arg.equals("--io-threads")) {
+                ioThreads = parseCount(arg, nextValue(args, i++));
+                forwarded.add(args[i]);
+            } else if (arg.equals("--stats")) {
+                stats = true;
+            } else if (arg.equals("--cache")) {
+                cache = resolve(workingDirectory, nextValue(args, i++));
+                forwarded.add(args[i]);
+            } else if (arg.equals("--atomic-writes")) {
+                atomicWrites = true;
+            } else if (arg.equals("--exclude")) {
+                excludes.add(nextValue(args, i++));
+                forwarded.add(args[i]);
+            } else if (arg.equals("--incremental")) {
+                incremental = true;
+            } else if (arg.equals("--lang")) {
+                lang = nextValue(args, i++);
+                forwarded.add(args[i]);
+            } else if (arg.equals("--batch")) {
+                batch = true;
+            } else {
+                paths.add(resolve(workingDirectory, arg));
+            }
+        }
+
+        if ((lang != null || batch) && !paths.isEmpty()) {
+            throw new IllegalArgumentException("Paths cannot be combined with --lang or --batch");
+        }
+
+        return new Arguments(paths, threads, ioThreads, stats, cache, atomicWrites, excludes, incremental, lang, batch, daemon, connect, idleTimeout, buildStartupArchive, useStartupArchive, paranoid, mergeDependencies, memoSize, forwarded);
+    }
+}
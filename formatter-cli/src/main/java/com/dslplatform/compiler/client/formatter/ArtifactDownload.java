@@ -2,32 +2,51 @@ package com.dslplatform.compiler.client.formatter;
 
 import javax.xml.bind.DatatypeConverter;
 import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URLConnection;
+import java.nio.channels.OverlappingFileLockException;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Locale;
 import java.util.concurrent.Callable;
 
 public class ArtifactDownload {
-    public final URI uri;
+    public final List<MirrorResolver.Mirror> mirrors;
     public final int length;
     public final String hexSha1;
 
     private final Logger logger;
+    private final ArtifactManifest manifest;
+    private final MirrorResolver resolver;
+    private final List<File> localCandidates;
+    private final File cacheDir;
     private final byte[] sha1;
     private final File jarFile;
+    private final File partFile;
 
     public ArtifactDownload(
             final Logger logger,
-            final Repository repository,
+            final ArtifactManifest manifest,
+            final MirrorResolver resolver,
+            final LocalCaches localCaches,
+            final File cacheDir,
+            final List<Repository> repositories,
             final String groupId,
             final String artifactId,
             final String version,
             final int length,
             final String hexSha1) {
         this.logger = logger;
+        this.manifest = manifest;
+        this.resolver = resolver;
+        this.localCandidates = localCaches.getCandidates(groupId, artifactId, version);
+        this.cacheDir = cacheDir;
 
         this.length = length;
         this.hexSha1 = hexSha1.toLowerCase(Locale.ENGLISH);
@@ -40,37 +59,80 @@ public class ArtifactDownload {
                 version,
                 this.hexSha1);
 
-        this.jarFile = new File(TEMP_DIR, jarName);
-
-        try {
-            this.uri = new URI(String.format(
-                    "%s%s/%s/%s/%3$s-%4$s.jar",
-                    repository.uri,
-                    groupId.replace('.', '/'),
-                    artifactId,
-                    version));
-        } catch (final URISyntaxException e) {
-            throw new RuntimeException(e);
+        this.jarFile = new File(cacheDir, jarName);
+        this.partFile = new File(cacheDir, jarName + ".part");
+
+        final List<MirrorResolver.Mirror> mirrors = new ArrayList<MirrorResolver.Mirror>(repositories.size());
+        for (final Repository repository : repositories) {
+            try {
+                mirrors.add(new MirrorResolver.Mirror(repository, new URI(String.format(
+                        "%s%s/%s/%s/%3$s-%4$s.jar",
+                        repository.uri,
+                        groupId.replace('.', '/'),
+                        artifactId,
+                        version))));
+            } catch (final URISyntaxException e) {
+                throw new RuntimeException(e);
+            }
         }
+        this.mirrors = Collections.unmodifiableList(mirrors);
     }
 
-    private static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir"), "dsl-clc-formatter");
+    static final File TEMP_DIR = new File(System.getProperty("java.io.tmpdir"), "dsl-clc-formatter");
+
+    /** Directory holding the downloaded artifacts, along with any files derived from them. */
+    File getCacheDir() {
+        return cacheDir;
+    }
+
+    /** Manifest recording the verified artifacts, along with the files derived from them. */
+    ArtifactManifest getManifest() {
+        return manifest;
+    }
 
     public Callable<File> getDownload() {
         return new Downloader();
     }
 
+    /** Number of times an interrupted transfer is resumed before giving up. */
+    private static final int ATTEMPTS = 3;
+
     private class Downloader implements Callable<File> {
         @Override
         public File call() throws IOException {
-            if (!checkCache()) {
-                final byte[] body = download();
-                persist(jarFile, body);
-            }
+            if (checkCache()) return jarFile;
+
+            final File local = findLocal();
+            if (local != null) return local;
 
+            download();
+            manifest.verified(jarFile, hexSha1);
             return jarFile;
         }
 
+        /** Looks for the artifact in the caches of other build tools, which are never modified. */
+        private File findLocal() {
+            for (final File candidate : localCandidates) {
+                if (!candidate.isFile() || candidate.length() != length) continue;
+                if (manifest.isVerified(candidate, hexSha1)) return candidate;
+
+                final MessageDigest md = getDigest();
+                try {
+                    hashFile(md, candidate);
+                } catch (final IOException e) {
+                    logger.debug("Could not read {}: {}", candidate, e);
+                    continue;
+                }
+                if (Arrays.equals(md.digest(), sha1)) {
+                    logger.debug("Using {} from a local cache", candidate);
+                    manifest.verified(candidate, hexSha1);
+                    return candidate;
+                }
+                logger.debug("Ignoring {}, its SHA-1 does not match", candidate);
+            }
+            return null;
+        }
+
         private boolean checkCache() throws IOException {
             if (!jarFile.isFile()) return false;
 
@@ -79,80 +141,220 @@ public class ArtifactDownload {
                 return false;
             }
 
-            final FileInputStream fis = new FileInputStream(jarFile);
-            final byte[] body = new byte[length];
+            if (manifest.isVerified(jarFile, hexSha1)) return true;
 
             final MessageDigest md = getDigest();
-
-            int offset = 0;
-            while (offset < length) {
-                final int read = fis.read(body, offset, length - offset);
-                if (read == -1) break;
-                md.update(body, offset, read);
-                offset += read;
-            }
-
-            final byte[] digest = md.digest();
-            if (!Arrays.equals(digest, sha1)) {
+            hashFile(md, jarFile);
+            if (!Arrays.equals(md.digest(), sha1)) {
                 jarFile.delete();
                 return false;
             }
 
+            manifest.verified(jarFile, hexSha1);
             return true;
         }
 
-        private byte[] download() throws IOException {
-            final InputStream is = uri.toURL().openStream();
+        private void hashFile(final MessageDigest md, final RandomAccessFile file) throws IOException {
+            file.seek(0L);
+            final byte[] buffer = new byte[65536];
+            while (true) {
+                final int read = file.read(buffer);
+                if (read == -1) break;
+                md.update(buffer, 0, read);
+            }
+        }
+
+        private void hashFile(final MessageDigest md, final File file) throws IOException {
+            final FileInputStream fis = new FileInputStream(file);
             try {
-                final byte[] body = new byte[length];
-                int offset = 0;
-                while (offset < length) {
-                    final int read = is.read(body, offset, length - offset);
+                final byte[] buffer = new byte[65536];
+                while (true) {
+                    final int read = fis.read(buffer);
                     if (read == -1) break;
-                    offset += read;
+                    md.update(buffer, 0, read);
                 }
-                if (is.read() != -1) { throw new IOException(String.format("Artifact was too big (expected %d bytes)",
-                        length)); }
+            } finally {
+                fis.close();
+            }
+        }
 
-                if (offset != length) { throw new IOException(String.format("Artifact was too small (got %d/%d bytes)",
-                        offset, length)); }
+        /**
+         * Downloads from the mirrors in ranked order, until one delivers a verified artifact.
+         * The partial file is shared by all processes downloading the artifact, so it is only
+         * written (and resumed) while holding a lock on it; while another process holds the
+         * lock, the artifact is downloaded into a private temporary file instead.
+         */
+        private void download() throws IOException {
+            if (!cacheDir.isDirectory()) {
+                logger.debug("Creating workspace: {}", cacheDir);
+                cacheDir.mkdirs();
+            }
 
-                verifyDownload(body);
+            File target = partFile;
+            RandomAccessFile file = new RandomAccessFile(partFile, "rw");
+            if (!tryLock(file)) {
+                file.close();
+                logger.debug("{} is being downloaded by another process, downloading separately", partFile);
+                target = File.createTempFile(jarFile.getName(), ".part", cacheDir);
+                file = new RandomAccessFile(target, "rw");
+            }
 
-                return body;
+            try {
+                // another process may have finished the download in the meantime
+                if (target == partFile && checkCache()) return;
+
+                IOException failure = null;
+                for (final MirrorResolver.Mirror mirror : resolver.rank(mirrors, length)) {
+                    try {
+                        download(mirror.uri, file);
+                        moveIntoPlace(target, file);
+                        return;
+                    } catch (final IOException e) {
+                        if (mirrors.size() > 1) {
+                            logger.debug("Could not download {} from {}: {}", hexSha1, mirror.repository.name, e);
+                            resolver.failed(mirror);
+                        }
+                        failure = e;
+                    }
+                }
+                throw failure;
             } finally {
-                is.close();
+                // a private partial file cannot be resumed later, and an empty one is of no use
+                final boolean discard = target != partFile || file.length() == 0;
+                if (discard) target.delete();
+                file.close();
+                if (discard) target.delete();
             }
         }
 
-        private MessageDigest getDigest() {
+        private boolean tryLock(final RandomAccessFile file) throws IOException {
             try {
-                return MessageDigest.getInstance("SHA-1");
-            } catch (final NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+                return file.getChannel().tryLock() != null;
+            } catch (final OverlappingFileLockException e) {
+                return false;
             }
         }
 
-        private void verifyDownload(final byte[] body) throws IOException {
-            final byte[] digest = getDigest().digest(body);
+        /**
+         * Moves the verified artifact into place, while still holding the lock where the
+         * platform allows renaming open files, or else right after releasing it.
+         */
+        private void moveIntoPlace(final File target, final RandomAccessFile file) throws IOException {
+            if (target.renameTo(jarFile)) return;
+
+            file.close();
+            if (target.renameTo(jarFile) || checkCache()) return;
+            if (!target.renameTo(jarFile)) {
+                throw new IOException("Could not move downloaded artifact to " + jarFile);
+            }
+        }
+
+        /**
+         * Streams the artifact into the partial file, hashing it on the fly. An interrupted
+         * transfer is resumed from the end of the partial file, which is also kept between
+         * runs and mirrors.
+         */
+        private void download(final URI uri, final RandomAccessFile file) throws IOException {
+            final MessageDigest md = getDigest();
+            IOException failure = null;
+            boolean complete = false;
+            for (int attempt = 0; attempt < ATTEMPTS && !complete; attempt++) {
+                try {
+                    complete = transfer(md, uri, file);
+                } catch (final IOException e) {
+                    logger.debug("Download of {} was interrupted: {}", uri, e);
+                    failure = e;
+                }
+            }
+
+            if (!complete) {
+                throw failure != null ? failure : new IOException(String.format(
+                        "Artifact was too small (got %d/%d bytes)", file.length(), length));
+            }
 
-            if (!Arrays.equals(sha1, digest)) { throw new IOException(String.format(
-                    "Digest mismatch; expected \"%s\" but got \"%s\"", hexSha1, DatatypeConverter
-                            .printHexBinary(digest).toLowerCase(Locale.ENGLISH))); }
+            verifyDigest(md.digest(), file);
         }
 
-        private void persist(final File jarFile, final byte[] body) throws IOException {
-            if (!TEMP_DIR.isDirectory()) {
-                logger.debug("Creating workspace: {}", TEMP_DIR);
-                TEMP_DIR.mkdirs();
+        /**
+         * Continues the partial file, leaving the digest of its contents in the provided one.
+         *
+         * @return {@code true} once the partial file holds the whole artifact
+         */
+        private boolean transfer(final MessageDigest md, final URI uri, final RandomAccessFile file) throws IOException {
+            md.reset();
+            long offset = file.length();
+            if (offset > length) {
+                file.setLength(0L);
+                offset = 0L;
             }
+            if (offset > 0) hashFile(md, file);
+            if (offset == length) return true;
 
-            final FileOutputStream fos = new FileOutputStream(jarFile);
+            final URLConnection connection = uri.toURL().openConnection();
+            if (offset > 0 && connection instanceof HttpURLConnection) {
+                connection.setRequestProperty("Range", "bytes=" + offset + "-");
+            }
+
+            final InputStream is = connection.getInputStream();
             try {
-                logger.debug("Writing {} ({} bytes)", jarFile, body.length);
-                fos.write(body);
+                if (offset > 0) {
+                    final boolean resumed = connection instanceof HttpURLConnection
+                            ? ((HttpURLConnection) connection).getResponseCode() == HttpURLConnection.HTTP_PARTIAL
+                                    && String.valueOf(connection.getHeaderField("Content-Range")).startsWith("bytes " + offset + "-")
+                            : "file".equals(uri.getScheme()) && skip(is, offset);
+                    if (resumed) {
+                        logger.debug("Resuming download of {} from byte {}", uri, offset);
+                    } else {
+                        md.reset();
+                        offset = 0L;
+                    }
+                }
+
+                file.setLength(offset);
+                file.seek(offset);
+                logger.debug("Writing {} ({} bytes)", jarFile.getName(), length - offset);
+                final byte[] buffer = new byte[65536];
+                while (true) {
+                    final int read = is.read(buffer);
+                    if (read == -1) break;
+                    if (offset + read > length) {
+                        file.setLength(0L);
+                        throw new IOException(String.format("Artifact was too big (expected %d bytes)", length));
+                    }
+                    file.write(buffer, 0, read);
+                    md.update(buffer, 0, read);
+                    offset += read;
+                }
             } finally {
-                fos.close();
+                is.close();
+            }
+            return offset == length;
+        }
+
+        private boolean skip(final InputStream is, final long count) throws IOException {
+            long remaining = count;
+            while (remaining > 0) {
+                final long skipped = is.skip(remaining);
+                if (skipped <= 0) return false;
+                remaining -= skipped;
+            }
+            return true;
+        }
+
+        private MessageDigest getDigest() {
+            try {
+                return MessageDigest.getInstance("SHA-1");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        private void verifyDigest(final byte[] digest, final RandomAccessFile file) throws IOException {
+            if (!Arrays.equals(sha1, digest)) {
+                file.setLength(0L);
+                throw new IOException(String.format(
+                        "Digest mismatch; expected \"%s\" but got \"%s\"", hexSha1, DatatypeConverter
+                                .printHexBinary(digest).toLowerCase(Locale.ENGLISH)));
             }
         }
     }
@@ -0,0 +1,146 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.*;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Record of the cached artifacts whose SHA-1 was already verified, along with their size
+ * and modification time. An artifact whose attributes still match is trusted without
+ * hashing it again, unless the manifest is paranoid, in which case every artifact is
+ * verified in full on each run.
+ *
+ * <p>Artifacts in the manifest directory are recorded by their name, and artifacts used in
+ * place from other caches (see {@link LocalCaches}) by their absolute path. Files derived
+ * from verified artifacts (see {@link MergedArchive}) are recorded with the SHA-1 they had
+ * when they were written.
+ */
+public class ArtifactManifest {
+    private static final String HEADER = "dsl-clc-formatter-manifest 1";
+
+    private static class Entry {
+        public final String hexSha1;
+        public final long length;
+        public final long lastModified;
+
+        public Entry(final String hexSha1, final long length, final long lastModified) {
+            this.hexSha1 = hexSha1;
+            this.length = length;
+            this.lastModified = lastModified;
+        }
+    }
+
+    private final Logger logger;
+    private final File manifest;
+    private final boolean paranoid;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+
+    public ArtifactManifest(final Logger logger, final File directory, final boolean paranoid) {
+        this.logger = logger;
+        this.manifest = new File(directory, "manifest");
+        this.paranoid = paranoid;
+        load();
+    }
+
+    private void load() {
+        if (!manifest.isFile()) return;
+
+        try {
+            final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(manifest), "UTF-8"));
+            try {
+                if (!HEADER.equals(br.readLine())) {
+                    logger.debug("Ignoring manifest with unknown format: {}", manifest);
+                    return;
+                }
+
+                while (true) {
+                    final String line = br.readLine();
+                    if (line == null) break;
+
+                    final String[] parts = line.split(" ", 4);
+                    if (parts.length != 4) {
+                        throw new IOException("Could not parse manifest entry: " + line);
+                    }
+                    entries.put(parts[3], new Entry(parts[0], Long.parseLong(parts[1]), Long.parseLong(parts[2])));
+                }
+            } finally {
+                br.close();
+            }
+        } catch (final Exception e) {
+            logger.debug("Could not read manifest {}, verifying all artifacts: {}", manifest, e);
+            entries.clear();
+        }
+    }
+
+    private String getKey(final File jarFile) {
+        final File directory = manifest.getAbsoluteFile().getParentFile();
+        final File absolute = jarFile.getAbsoluteFile();
+        return directory.equals(absolute.getParentFile()) ? absolute.getName() : absolute.getPath();
+    }
+
+    private File getFile(final String key) {
+        final File file = new File(key);
+        return file.isAbsolute() ? file : new File(manifest.getParentFile(), key);
+    }
+
+    /** Checks whether the artifact was verified before and has not been touched since. */
+    public boolean isVerified(final File jarFile, final String hexSha1) {
+        if (paranoid) return false;
+
+        final Entry entry = entries.get(getKey(jarFile));
+        return entry != null
+                && entry.hexSha1.equals(hexSha1)
+                && entry.length == jarFile.length()
+                && entry.lastModified == jarFile.lastModified();
+    }
+
+    /** Returns the SHA-1 last recorded for the file, or {@code null} if there is none. */
+    public String getRecordedSha1(final File file) {
+        final Entry entry = entries.get(getKey(file));
+        return entry != null ? entry.hexSha1 : null;
+    }
+
+    /** Records an artifact whose SHA-1 was just verified in full. */
+    public void verified(final File jarFile, final String hexSha1) {
+        entries.put(getKey(jarFile), new Entry(hexSha1, jarFile.length(), jarFile.lastModified()));
+        try {
+            save();
+        } catch (final IOException e) {
+            logger.debug("Could not save manifest {}: {}", manifest, e);
+        }
+    }
+
+    private synchronized void save() throws IOException {
+        final File parent = manifest.getParentFile();
+        if (!parent.isDirectory()) parent.mkdirs();
+        final File temp = File.createTempFile("manifest", ".tmp", parent);
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                if (!getFile(entry.getKey()).isFile()) continue;
+
+                final Entry value = entry.getValue();
+                writer.write(value.hexSha1);
+                writer.write(' ');
+                writer.write(Long.toString(value.length));
+                writer.write(' ');
+                writer.write(Long.toString(value.lastModified));
+                writer.write(' ');
+                writer.write(entry.getKey());
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(manifest)) {
+            manifest.delete();
+            if (!temp.renameTo(manifest)) {
+                temp.delete();
+                throw new IOException("Could not replace manifest: " + manifest);
+            }
+        }
+    }
+}
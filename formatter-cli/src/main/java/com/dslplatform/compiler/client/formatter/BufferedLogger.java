@@ -0,0 +1,83 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Logger which captures messages logged from worker threads into a {@link Buffer},
+ * so that they can be replayed in the same order a sequential run would produce them.
+ * Messages logged from a thread without an attached buffer go straight to the target.
+ */
+public class BufferedLogger implements Logger {
+    private static final int DEBUG = 0;
+    private static final int INFO = 1;
+    private static final int ERROR = 2;
+
+    public static class Buffer {
+        private final List<Object[]> entries = new ArrayList<Object[]>();
+
+        private synchronized void add(final int level, final String format, final Object[] params) {
+            entries.add(new Object[] { level, format, params });
+        }
+
+        public synchronized void replay(final Logger logger) {
+            for (final Object[] entry : entries) {
+                final String format = (String) entry[1];
+                final Object[] params = (Object[]) entry[2];
+                switch ((Integer) entry[0]) {
+                    case DEBUG: logger.debug(format, params); break;
+                    case INFO: logger.info(format, params); break;
+                    default: logger.error(format, params); break;
+                }
+            }
+            entries.clear();
+        }
+    }
+
+    private final Logger target;
+    private final ThreadLocal<Buffer> current = new ThreadLocal<Buffer>();
+
+    public BufferedLogger(final Logger target) {
+        this.target = target;
+    }
+
+    public Logger getTarget() {
+        return target;
+    }
+
+    public void attach(final Buffer buffer) {
+        current.set(buffer);
+    }
+
+    public void detach() {
+        current.remove();
+    }
+
+    private void log(final int level, final String format, final Object[] params) {
+        final Buffer buffer = current.get();
+        if (buffer != null) {
+            buffer.add(level, format, params);
+        } else {
+            switch (level) {
+                case DEBUG: target.debug(format, params); break;
+                case INFO: target.info(format, params); break;
+                default: target.error(format, params); break;
+            }
+        }
+    }
+
+    @Override
+    public void debug(final String format, final Object... params) {
+        log(DEBUG, format, params);
+    }
+
+    @Override
+    public void info(final String format, final Object... params) {
+        log(INFO, format, params);
+    }
+
+    @Override
+    public void error(final String format, final Object... params) {
+        log(ERROR, format, params);
+    }
+}
@@ -10,18 +10,78 @@ import java.nio.charset.*;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
+import java.util.Locale;
 
 public class CodeIO {
+    /** Files at least this big are memory-mapped instead of being read into a buffer. */
+    private static final int MAP_THRESHOLD = 1 << 20;
+
+    /** Buffers up to this size are kept for reuse by the thread which allocated them. */
+    private static final int MAX_POOLED_BUFFER = 8 << 20;
+
+    /** A mapped file cannot be truncated on Windows until the mapping is garbage collected. */
+    private static final boolean CAN_MAP = !System.getProperty("os.name", "").toLowerCase(Locale.ENGLISH).startsWith("windows");
+
+    /** Mapped ASCII content is copied to the heap in chunks of this size. */
+    private static final int ASCII_CHUNK = 64 << 10;
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private static class Buffers {
+        private ByteBuffer bytes = ByteBuffer.allocate(0);
+        private CharBuffer chars = CharBuffer.allocate(0);
+        private byte[] chunk;
+
+        public byte[] chunk() {
+            if (chunk == null) chunk = new byte[ASCII_CHUNK];
+            return chunk;
+        }
+
+        public ByteBuffer bytes(final int capacity) {
+            if (bytes.capacity() >= capacity) {
+                bytes.clear();
+                return bytes;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(capacity);
+            if (capacity <= MAX_POOLED_BUFFER) bytes = buffer;
+            return buffer;
+        }
+
+        public CharBuffer chars(final int capacity) {
+            if (chars.capacity() >= capacity) {
+                chars.clear();
+                return chars;
+            }
+            final CharBuffer buffer = CharBuffer.allocate(capacity);
+            if (capacity <= MAX_POOLED_BUFFER) chars = buffer;
+            return buffer;
+        }
+
+        /** Replaces a buffer which overflowed with a bigger one, keeping its content. */
+        public ByteBuffer grow(final ByteBuffer buffer) {
+            final ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() * 2 + 16);
+            buffer.flip();
+            bigger.put(buffer);
+            if (bigger.capacity() <= MAX_POOLED_BUFFER) bytes = bigger;
+            return bigger;
+        }
+    }
+
     private final Logger logger;
     private final Charset charset;
+    private final boolean asciiCompatible;
     private final ThreadLocal<CharsetDecoder> charsetDecoder;
     private final ThreadLocal<CharsetEncoder> charsetEncoder;
     private final ThreadLocal<MessageDigest> messageDigest;
+    private final ThreadLocal<Buffers> buffers;
 
     public CodeIO(final Logger logger, final Charset charset) {
         this.logger = logger;
         this.charset = charset;
 
+        final String name = charset.name();
+        this.asciiCompatible = name.equals("UTF-8") || name.equals("US-ASCII") || name.equals("ISO-8859-1");
+
         this.charsetDecoder = new ThreadLocal<CharsetDecoder>() {
             @Override
             protected CharsetDecoder initialValue() {
@@ -46,23 +106,51 @@ public class CodeIO {
                 }
             }
         };
+
+        this.buffers = new ThreadLocal<Buffers>() {
+            @Override
+            protected Buffers initialValue() {
+                return new Buffers();
+            }
+        };
     }
 
     private byte[] digestByteBuffer(final ByteBuffer buffer) {
         final MessageDigest md = messageDigest.get();
         md.reset();
-        md.update(buffer.array(), 0, buffer.limit());
+        md.update(buffer.duplicate());
         return md.digest();
     }
 
+    /** SHA-1 of a source which was not read from a file, the same as {@link Code#digest}. */
+    public byte[] digest(final byte[] body) {
+        return digestByteBuffer(ByteBuffer.wrap(body));
+    }
+
+    /**
+     * Big files are mapped, so their content is hashed and decoded without being copied
+     * to the heap; small ones are read into a buffer which is reused by the calling thread.
+     */
     private ByteBuffer readFileToBuffer(final File source) throws IOException {
         final RandomAccessFile file = new RandomAccessFile(source, "r");
         try {
             final FileChannel channel = file.getChannel();
             try {
-                final ByteBuffer buffer = ByteBuffer.allocate((int) channel.size());
-                channel.read(buffer);
-                buffer.rewind();
+                final long size = channel.size();
+                if (size > Integer.MAX_VALUE) {
+                    throw new IOException("Source file \"" + source + "\" is too big (" + size + " bytes)");
+                }
+
+                if (CAN_MAP && size >= MAP_THRESHOLD) {
+                    return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                }
+
+                final ByteBuffer buffer = buffers.get().bytes((int) size);
+                buffer.limit((int) size);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer) == -1) break;
+                }
+                buffer.flip();
                 return buffer;
             } finally {
                 channel.close();
@@ -72,8 +160,55 @@ public class CodeIO {
         }
     }
 
-    private String decodeByteBuffer(final File source, final ByteBuffer buffer) throws CharacterCodingException {
-        return charsetDecoder.get().decode(buffer).toString();
+    private static boolean isAscii(final byte[] array, final int offset, final int length) {
+        for (int i = offset; i < offset + length; i++) {
+            if (array[i] < 0) return false;
+        }
+        return true;
+    }
+
+    /**
+     * A mapped buffer has no array, so its content is copied in chunks of an array which is
+     * reused by the calling thread. Returns {@code null} as soon as a non-ASCII byte is found.
+     */
+    @SuppressWarnings("deprecation")
+    private String decodeAsciiChunks(final ByteBuffer buffer) {
+        final byte[] chunk = buffers.get().chunk();
+        final ByteBuffer source = buffer.duplicate();
+        final StringBuilder sb = new StringBuilder(source.remaining());
+        while (source.hasRemaining()) {
+            final int length = Math.min(chunk.length, source.remaining());
+            source.get(chunk, 0, length);
+            if (!isAscii(chunk, 0, length)) return null;
+            sb.append(new String(chunk, 0, 0, length));
+        }
+        return sb.toString();
+    }
+
+    /** Pure ASCII content of an ASCII compatible charset is copied straight into the string. */
+    private String decodeByteBuffer(final ByteBuffer buffer) throws CharacterCodingException {
+        final int length = buffer.remaining();
+
+        if (asciiCompatible) {
+            if (buffer.hasArray()) {
+                final int offset = buffer.arrayOffset() + buffer.position();
+                if (isAscii(buffer.array(), offset, length)) return new String(buffer.array(), offset, length, LATIN1);
+            } else {
+                final String ascii = decodeAsciiChunks(buffer);
+                if (ascii != null) return ascii;
+            }
+        }
+
+        final CharsetDecoder decoder = charsetDecoder.get();
+        decoder.reset();
+
+        final CharBuffer chars = buffers.get().chars((int) (length * (double) decoder.maxCharsPerByte()));
+        CoderResult result = decoder.decode(buffer.duplicate(), chars, true);
+        if (result.isUnderflow()) result = decoder.flush(chars);
+        if (!result.isUnderflow()) result.throwException();
+
+        chars.flip();
+        return chars.toString();
     }
 
     public Code read(final File source) throws IOException {
@@ -81,7 +216,7 @@ public class CodeIO {
         final ByteBuffer buffer = readFileToBuffer(file);
 
         try {
-            final String body = decodeByteBuffer(file, buffer);
+            final String body = decodeByteBuffer(buffer);
             final byte[] digest = digestByteBuffer(buffer);
             return new Code(file, body, digest);
         } catch (final CharacterCodingException e) {
@@ -89,8 +224,176 @@ public class CodeIO {
         }
     }
 
+    /**
+     * Encodes into a buffer which is reused by the calling thread, so the result
+     * must be consumed before the next call. Pure ASCII content of an ASCII
+     * compatible charset bypasses the encoder.
+     */
     private ByteBuffer encodeToByteBuffer(final String code) throws CharacterCodingException {
-        return charsetEncoder.get().encode(CharBuffer.wrap(code));
+        final Buffers pool = buffers.get();
+        final int length = code.length();
+
+        if (asciiCompatible) {
+            final ByteBuffer buffer = pool.bytes(length);
+            final byte[] array = buffer.array();
+            int index = 0;
+            while (index < length) {
+                final char ch = code.charAt(index);
+                if (ch >= 0x80) break;
+                array[index++] = (byte) ch;
+            }
+            if (index == length) {
+                buffer.limit(length);
+                return buffer;
+            }
+        }
+
+        final CharsetEncoder encoder = charsetEncoder.get();
+        encoder.reset();
+
+        final CharBuffer chars = CharBuffer.wrap(code);
+        ByteBuffer buffer = pool.bytes((int) (length * (double) encoder.averageBytesPerChar()) + 16);
+        while (true) {
+            final CoderResult result = encoder.encode(chars, buffer, true);
+            if (result.isUnderflow()) break;
+            if (!result.isOverflow()) result.throwException();
+            buffer = pool.grow(buffer);
+        }
+        while (true) {
+            final CoderResult result = encoder.flush(buffer);
+            if (result.isUnderflow()) break;
+            if (!result.isOverflow()) result.throwException();
+            buffer = pool.grow(buffer);
+        }
+
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Decodes an in-memory source, such as one read from standard input. */
+    public String decode(final String context, final byte[] body) throws IOException {
+        try {
+            return decodeByteBuffer(ByteBuffer.wrap(body));
+        } catch (final CharacterCodingException e) {
+            throw new IOException("Could not decode source \"" + context + "\" via encoding \"" + charset + "\"", e);
+        }
+    }
+
+    /** Encodes an in-memory source, such as one written to standard output. */
+    public byte[] encode(final String context, final String body) throws IOException {
+        final ByteBuffer buffer;
+        try {
+            buffer = encodeToByteBuffer(body);
+        } catch (final CharacterCodingException e) {
+            throw new IOException("Could not encode source \"" + context + "\" via encoding \"" + charset + "\"", e);
+        }
+
+        return Arrays.copyOfRange(buffer.array(), buffer.arrayOffset(), buffer.arrayOffset() + buffer.limit());
+    }
+
+    public enum WriteMode {
+        /** Rewrites the file in place, starting from the first byte which differs. */
+        IN_PLACE,
+        /** Writes a temporary file next to the target and renames it over the target. */
+        ATOMIC
+    }
+
+    /** Length of the first differing character, never splitting a surrogate pair. */
+    private static int commonPrefix(final String left, final String right) {
+        final int length = Math.min(left.length(), right.length());
+        int index = 0;
+        while (index < length && left.charAt(index) == right.charAt(index)) {
+            index++;
+        }
+        if (index > 0 && index < length && Character.isHighSurrogate(left.charAt(index - 1))) {
+            index--;
+        }
+        return index;
+    }
+
+    private int encodedLength(final String body, final int end) throws CharacterCodingException {
+        final String name = charset.name();
+        if (name.equals("US-ASCII") || name.equals("ISO-8859-1")) return end;
+
+        if (name.equals("UTF-8")) {
+            int length = 0;
+            for (int i = 0; i < end; i++) {
+                final char ch = body.charAt(i);
+                if (ch < 0x80) {
+                    length += 1;
+                } else if (ch < 0x800) {
+                    length += 2;
+                } else if (Character.isHighSurrogate(ch)) {
+                    length += 4;
+                    i++;
+                } else {
+                    length += 3;
+                }
+            }
+            return length;
+        }
+
+        return charset.newEncoder().encode(CharBuffer.wrap(body, 0, end)).remaining();
+    }
+
+    /** Checks that the file still starts with the bytes of the buffer up to the offset. */
+    private static boolean startsWith(final FileChannel channel, final ByteBuffer buffer, final int offset) throws IOException {
+        if (channel.size() < offset) return false;
+
+        final ByteBuffer chunk = ByteBuffer.allocate(Math.min(offset, 65536));
+        final ByteBuffer expected = buffer.duplicate();
+        long position = 0;
+        while (position < offset) {
+            chunk.clear();
+            chunk.limit((int) Math.min(chunk.capacity(), offset - position));
+            final int read = channel.read(chunk, position);
+            if (read <= 0) return false;
+
+            chunk.flip();
+            expected.limit((int) position + read);
+            expected.position((int) position);
+            if (!chunk.equals(expected)) return false;
+            position += read;
+        }
+        return true;
+    }
+
+    /**
+     * The source was decoded strictly, so its bytes are exactly the encoding of its body,
+     * and the part shared with the replacement does not need to be written again. If the
+     * file no longer starts with that part (it was changed since it was read), it is
+     * replaced as a whole instead, so that it never ends up mixing old and new content.
+     */
+    private void writeChangesToFile(final Code target, final String body, final ByteBuffer buffer) throws IOException {
+        final int offset = encodedLength(body, commonPrefix(target.body, body));
+
+        final boolean unchanged;
+        final RandomAccessFile file = new RandomAccessFile(target.file, "rw");
+        try {
+            final FileChannel channel = file.getChannel();
+            try {
+                unchanged = startsWith(channel, buffer, offset);
+                if (unchanged) {
+                    buffer.position(offset);
+                    long position = offset;
+                    while (buffer.hasRemaining()) {
+                        position += channel.write(buffer, position);
+                    }
+                    file.setLength(buffer.limit());
+                }
+            } finally {
+                channel.close();
+            }
+        } finally {
+            file.close();
+        }
+
+        if (!unchanged) {
+            logger.debug("File was changed since it was read, replacing it: {}", target.path);
+            writeBufferAtomically(target.file, buffer);
+            return;
+        }
+        logger.debug("Wrote {} out of {} bytes to: {}", buffer.limit() - offset, buffer.limit(), target.path);
     }
 
     private void writeBufferToFile(final File target, final ByteBuffer buffer) throws IOException {
@@ -98,7 +401,9 @@ public class CodeIO {
         try {
             final FileChannel channel = file.getChannel();
             try {
-                channel.write(buffer);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
                 file.setLength(buffer.limit());
             } finally {
                 channel.close();
@@ -108,7 +413,29 @@ public class CodeIO {
         }
     }
 
-    public void write(final Code target, final String body) throws IOException {
+    /**
+     * Renaming is atomic on POSIX file systems. On Windows the target has to be
+     * deleted first, which leaves a short window in which the file is missing.
+     */
+    private void writeBufferAtomically(final File target, final ByteBuffer buffer) throws IOException {
+        final File temp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+        try {
+            writeBufferToFile(temp, buffer);
+            if (!temp.renameTo(target)) {
+                if (!target.delete() || !temp.renameTo(target)) {
+                    throw new IOException("Could not replace \"" + target + "\" with \"" + temp + "\"");
+                }
+            }
+        } finally {
+            if (temp.exists()) temp.delete();
+        }
+    }
+
+    public Code write(final Code target, final String body) throws IOException {
+        return write(target, body, WriteMode.IN_PLACE);
+    }
+
+    public Code write(final Code target, final String body, final WriteMode mode) throws IOException {
         final ByteBuffer buffer;
         try {
             buffer = encodeToByteBuffer(body);
@@ -122,9 +449,15 @@ public class CodeIO {
 
         if (!target.equals(replacement)) {
             logger.info("Overwriting file: {}", target.file.getAbsolutePath());
-            writeBufferToFile(file, buffer);
+            if (mode == WriteMode.ATOMIC) {
+                writeBufferAtomically(file, buffer);
+            } else {
+                writeChangesToFile(target, body, buffer);
+            }
         } else {
             logger.debug("There were no changes to: {}", target.file.getAbsolutePath());
         }
+
+        return replacement;
     }
 }
@@ -0,0 +1,290 @@
+package com.dslplatform.compiler.client.formatter;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Long-running formatter which keeps the formatters and their class loaders warm.
+ * Clients connect over a loopback socket and send the same arguments they would
+ * pass to {@link Main}; log messages and the exit status are streamed back.
+ *
+ * <p>As any local user can connect to the port, every request has to present a random
+ * token, which the daemon writes into a file only its user can read (see {@link #getTokenFile}).
+ *
+ * <p>The daemon shuts itself down after being idle for the configured timeout,
+ * and reloads its formatters when the formatter configuration changes.
+ */
+public class Daemon {
+    static final String FORMAT = "FORMAT";
+
+    static final byte DEBUG = 'D';
+    static final byte INFO = 'I';
+    static final byte ERROR = 'E';
+    static final byte TRACE = 'T';
+    static final byte REJECTED = 'R';
+    static final byte DENIED = 'U';
+    static final byte EXIT = 'X';
+
+    /** Limits of what an unauthenticated client can make the daemon read, in bytes. */
+    private static final int MAX_COMMAND_LENGTH = 16;
+    private static final int MAX_TOKEN_LENGTH = 256;
+    /** Limits of the rest of the request, which only the daemon's user can send. */
+    private static final int MAX_STRING_LENGTH = 1 << 20;
+    private static final int MAX_ARGS = 1 << 16;
+
+    /** Time a client has to send its request, after which its session is dropped. */
+    private static final int REQUEST_TIMEOUT = 30000;
+
+    private final Logger logger;
+    private final int port;
+    private final long idleTimeout;
+    private final Arguments arguments;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private volatile long lastActivity = System.currentTimeMillis();
+
+    private Main main;
+    private String fingerprint;
+    private byte[] token;
+
+    public Daemon(final Logger logger, final Arguments arguments) {
+        this.logger = logger;
+        this.port = arguments.daemon;
+        this.idleTimeout = arguments.idleTimeout * 1000L;
+        this.arguments = arguments;
+        this.main = new Main(logger, arguments);
+    }
+
+    /**
+     * Returns the formatter for the current configuration, reloading it if the configuration
+     * has changed since the last request, or {@code null} if the client uses a different one.
+     */
+    private synchronized Main getMain(final String clientFingerprint) throws IOException {
+        final String currentFingerprint = main.getConfigurationFingerprint();
+        if (!currentFingerprint.equals(fingerprint)) {
+            if (fingerprint != null) {
+                logger.info("Formatter configuration has changed, reloading formatters");
+                main = new Main(logger, arguments);
+            }
+            fingerprint = currentFingerprint;
+        }
+        return currentFingerprint.equals(clientFingerprint) ? main : null;
+    }
+
+    /** File holding the token of the daemon on the port, in a directory private to the user. */
+    static File getTokenFile(final int port) {
+        final File directory = new File(System.getProperty("user.home"), ".dsl-clc-formatter");
+        return new File(directory, "daemon-" + port + ".token");
+    }
+
+    private void restrictToOwner(final File file) {
+        final boolean restricted = file.setReadable(false, false) && file.setReadable(true, true)
+                && file.setWritable(false, false) && file.setWritable(true, true)
+                && (!file.isDirectory() || file.setExecutable(false, false) && file.setExecutable(true, true));
+        if (!restricted) logger.debug("Could not restrict access to {} to its owner", file);
+    }
+
+    private void writeToken(final File tokenFile) throws IOException {
+        final File directory = tokenFile.getParentFile();
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Could not create directory: " + directory);
+        }
+        restrictToOwner(directory);
+
+        final byte[] random = new byte[32];
+        new SecureRandom().nextBytes(random);
+        token = DatatypeConverter.printHexBinary(random).toLowerCase(Locale.ENGLISH).getBytes("UTF-8");
+
+        final File temp = File.createTempFile("daemon", ".tmp", directory);
+        try {
+            restrictToOwner(temp);
+            final OutputStream os = new FileOutputStream(temp);
+            try {
+                os.write(token);
+            } finally {
+                os.close();
+            }
+
+            if (!temp.renameTo(tokenFile)) {
+                tokenFile.delete();
+                if (!temp.renameTo(tokenFile)) {
+                    throw new IOException("Could not write daemon token: " + tokenFile);
+                }
+            }
+        } finally {
+            temp.delete();
+        }
+    }
+
+    public void serve() throws IOException {
+        final ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        final File tokenFile = getTokenFile(port);
+        final ExecutorService sessions = Executors.newCachedThreadPool();
+        try {
+            writeToken(tokenFile);
+            getMain(null);
+            server.setSoTimeout((int) Math.min(idleTimeout, 60000L));
+            logger.info("Formatter daemon listening on {}", server.getLocalSocketAddress());
+
+            while (true) {
+                final Socket socket;
+                try {
+                    socket = server.accept();
+                } catch (final SocketTimeoutException e) {
+                    if (active.get() == 0 && System.currentTimeMillis() - lastActivity >= idleTimeout) {
+                        logger.info("Shutting down formatter daemon after {} seconds of inactivity", idleTimeout / 1000);
+                        return;
+                    }
+                    continue;
+                }
+
+                active.incrementAndGet();
+                sessions.execute(new Session(socket));
+            }
+        } finally {
+            if (token != null) tokenFile.delete();
+            server.close();
+            sessions.shutdown();
+        }
+    }
+
+    private class Session implements Runnable {
+        private final Socket socket;
+
+        public Session(final Socket socket) {
+            this.socket = socket;
+        }
+
+        @Override
+        public void run() {
+            try {
+                socket.setSoTimeout(REQUEST_TIMEOUT);
+                final DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                try {
+                    if (serve(dis, dos)) dos.flush();
+                } finally {
+                    socket.close();
+                }
+            } catch (final SocketTimeoutException e) {
+                logger.debug("Dropping formatter client which did not send its request in time");
+            } catch (final IOException e) {
+                logger.error("Could not serve formatter client: {}", e);
+            } finally {
+                lastActivity = System.currentTimeMillis();
+                active.decrementAndGet();
+            }
+        }
+
+        /** Serves a request, returning {@code false} if the client went away in the meantime. */
+        private boolean serve(final DataInputStream dis, final DataOutputStream dos) throws IOException {
+            final String command = Frames.readString(dis, MAX_COMMAND_LENGTH);
+            if (!FORMAT.equals(command)) {
+                throw new IOException("Unknown command: " + command);
+            }
+
+            if (!MessageDigest.isEqual(token, Frames.readString(dis, MAX_TOKEN_LENGTH).getBytes("UTF-8"))) {
+                logger.debug("Rejecting client without the daemon token");
+                dos.writeByte(DENIED);
+                return true;
+            }
+
+            final String clientFingerprint = Frames.readString(dis, MAX_STRING_LENGTH);
+            final File workingDirectory = new File(Frames.readString(dis, MAX_STRING_LENGTH));
+            final int argCount = dis.readInt();
+            if (argCount < 0 || argCount > MAX_ARGS) {
+                throw new IOException("Invalid argument count: " + argCount);
+            }
+            final String[] args = new String[argCount];
+            for (int i = 0; i < args.length; i++) {
+                args[i] = Frames.readString(dis, MAX_STRING_LENGTH);
+            }
+            // the request was read, formatting may take longer than a client is given to send it
+            socket.setSoTimeout(0);
+
+            final Main current = getMain(clientFingerprint);
+            if (current == null) {
+                logger.debug("Rejecting client with a different formatter configuration");
+                dos.writeByte(REJECTED);
+                return true;
+            }
+
+            final RemoteLogger remote = new RemoteLogger(dos);
+            int status = 0;
+            try {
+                current.run(Arguments.parse(args, workingDirectory), remote);
+            } catch (final Throwable t) {
+                remote.trace(t);
+                status = 1;
+            }
+
+            if (remote.isDisconnected()) {
+                logger.debug("Formatter client disconnected before the request was done");
+                return false;
+            }
+            dos.writeByte(EXIT);
+            dos.writeInt(status);
+            return true;
+        }
+    }
+
+    /** Streams log messages to the client, dropping them once the client has disconnected. */
+    private static class RemoteLogger implements Logger {
+        private final DataOutputStream dos;
+        private boolean disconnected;
+
+        public RemoteLogger(final DataOutputStream dos) {
+            this.dos = dos;
+        }
+
+        public synchronized boolean isDisconnected() {
+            return disconnected;
+        }
+
+        private synchronized void send(final byte type, final String message) {
+            if (disconnected) return;
+            try {
+                dos.writeByte(type);
+                Frames.writeString(dos, message);
+            } catch (final IOException e) {
+                disconnected = true;
+            }
+        }
+
+        public void trace(final Throwable t) {
+            final StringWriter sw = new StringWriter();
+            t.printStackTrace(new PrintWriter(sw));
+            send(TRACE, sw.toString());
+        }
+
+        @Override
+        public void debug(final String format, final Object... params) {
+            send(DEBUG, LoggerImpl.render(format, params));
+        }
+
+        @Override
+        public void info(final String format, final Object... params) {
+            send(INFO, LoggerImpl.render(format, params));
+        }
+
+        @Override
+        public void error(final String format, final Object... params) {
+            send(ERROR, LoggerImpl.render(format, params));
+            for (final Object param : params) {
+                if (param instanceof Exception) {
+                    trace((Exception) param);
+                }
+            }
+        }
+    }
+}
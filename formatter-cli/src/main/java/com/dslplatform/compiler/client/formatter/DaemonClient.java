@@ -0,0 +1,81 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.List;
+
+/** Thin client which forwards a formatting request to a running {@link Daemon}. */
+public class DaemonClient {
+    private final Logger logger;
+    private final int port;
+
+    public DaemonClient(final Logger logger, final int port) {
+        this.logger = logger;
+        this.port = port;
+    }
+
+    /**
+     * Sends the arguments to the daemon and relays its log messages.
+     *
+     * @return the exit status, or {@code null} if the daemon is not running
+     *         or runs with a different formatter configuration
+     */
+    public Integer run(final String fingerprint, final List<String> args) throws IOException {
+        final File tokenFile = Daemon.getTokenFile(port);
+        if (!tokenFile.isFile()) {
+            logger.debug("Formatter daemon token was not found: {}", tokenFile);
+            return null;
+        }
+        final byte[] token = new byte[(int) tokenFile.length()];
+        final DataInputStream tis = new DataInputStream(new FileInputStream(tokenFile));
+        try {
+            tis.readFully(token);
+        } finally {
+            tis.close();
+        }
+
+        final Socket socket;
+        try {
+            socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        } catch (final ConnectException e) {
+            logger.debug("Formatter daemon is not running on port {}", port);
+            return null;
+        }
+
+        try {
+            final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            Frames.writeString(dos, Daemon.FORMAT);
+            Frames.writeString(dos, new String(token, "UTF-8"));
+            Frames.writeString(dos, fingerprint);
+            Frames.writeString(dos, System.getProperty("user.dir"));
+            dos.writeInt(args.size());
+            for (final String arg : args) {
+                Frames.writeString(dos, arg);
+            }
+            dos.flush();
+
+            final DataInputStream dis = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            while (true) {
+                final byte type = dis.readByte();
+                switch (type) {
+                    case Daemon.DEBUG: logger.debug("{}", Frames.readString(dis)); break;
+                    case Daemon.INFO: logger.info("{}", Frames.readString(dis)); break;
+                    case Daemon.ERROR: logger.error("{}", Frames.readString(dis)); break;
+                    case Daemon.TRACE: System.err.print(Frames.readString(dis)); break;
+                    case Daemon.EXIT: return dis.readInt();
+                    case Daemon.DENIED:
+                        logger.debug("Formatter daemon on port {} did not accept the token", port);
+                        return null;
+                    case Daemon.REJECTED:
+                        logger.debug("Formatter daemon on port {} uses a different configuration", port);
+                        return null;
+                    default: throw new IOException("Unknown response from formatter daemon: " + type);
+                }
+            }
+        } finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Process-wide pool for artifact downloads. Artifacts are identified by their SHA-1, so an
+ * artifact listed in several dependency files is downloaded and verified only once, and
+ * dependency files which list the same artifacts in the same order share a single class loader.
+ * Failed downloads are forgotten, so that they can be retried later (e.g. by a daemon).
+ */
+class DownloadScheduler {
+    public static final DownloadScheduler INSTANCE = new DownloadScheduler(8);
+
+    private final ThreadPoolExecutor executor;
+    private final ConcurrentMap<String, Future<File>> downloads = new ConcurrentHashMap<String, Future<File>>();
+    private final ConcurrentMap<String, Future<ClassLoader>> classLoaders = new ConcurrentHashMap<String, Future<ClassLoader>>();
+
+    private DownloadScheduler(final int threads) {
+        executor = new ThreadPoolExecutor(
+                threads, threads, 30L, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable runnable) {
+                        final Thread thread = new Thread(runnable, "artifact-download");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    /** Starts downloading the artifact, unless an artifact with the same SHA-1 already is. */
+    public Future<File> schedule(final ArtifactDownload artifact) {
+        final Future<File> scheduled = downloads.get(artifact.hexSha1);
+        if (scheduled != null) return scheduled;
+
+        final FutureTask<File> task = new FutureTask<File>(artifact.getDownload()) {
+            @Override
+            protected void done() {
+                try {
+                    get();
+                } catch (final Exception e) {
+                    downloads.remove(artifact.hexSha1, this);
+                }
+            }
+        };
+
+        final Future<File> previous = downloads.putIfAbsent(artifact.hexSha1, task);
+        if (previous != null) return previous;
+
+        executor.execute(task);
+        return task;
+    }
+
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new IOException(cause);
+        }
+    }
+
+    /**
+     * Returns the class loader of the artifacts, downloading all of them in parallel.
+     * When merging, the verified artifacts are combined into a {@link MergedArchive}
+     * next to them, which is served by an {@link IndexedClassLoader}.
+     */
+    public ClassLoader getClassLoader(
+            final Logger logger,
+            final List<ArtifactDownload> artifacts,
+            final boolean merge) throws IOException {
+        // the order of the artifacts is the order in which classes are resolved, so it is kept
+        final List<String> hashes = new ArrayList<String>();
+        for (final ArtifactDownload artifact : artifacts) {
+            hashes.add(artifact.hexSha1);
+        }
+        final String key = (merge ? "merged" : "jars") + hashes;
+
+        final Future<ClassLoader> cached = classLoaders.get(key);
+        if (cached != null) return await(cached);
+
+        final FutureTask<ClassLoader> task = new FutureTask<ClassLoader>(new Callable<ClassLoader>() {
+            @Override
+            public ClassLoader call() throws IOException {
+                final List<Future<File>> downloads = new ArrayList<Future<File>>();
+                for (final ArtifactDownload artifact : artifacts) {
+                    downloads.add(schedule(artifact));
+                }
+
+                final List<File> jars = new ArrayList<File>();
+                for (final Future<File> download : downloads) {
+                    jars.add(await(download));
+                }
+
+                if (merge && !jars.isEmpty()) {
+                    final ArtifactDownload first = artifacts.get(0);
+                    final File archive = MergedArchive.getFile(first.getCacheDir(), hashes);
+                    return new IndexedClassLoader(
+                            MergedArchive.merge(logger, first.getManifest(), archive, jars),
+                            DownloadScheduler.class.getClassLoader());
+                }
+
+                final List<URL> localCache = new ArrayList<URL>();
+                for (final File jar : jars) {
+                    localCache.add(jar.toURI().toURL());
+                }
+
+                return new URLClassLoader(
+                        localCache.toArray(new URL[localCache.size()]),
+                        DownloadScheduler.class.getClassLoader());
+            }
+        });
+
+        final Future<ClassLoader> previous = classLoaders.putIfAbsent(key, task);
+        if (previous != null) return await(previous);
+
+        task.run();
+        try {
+            return await(task);
+        } catch (final IOException e) {
+            classLoaders.remove(key, task);
+            throw e;
+        }
+    }
+}
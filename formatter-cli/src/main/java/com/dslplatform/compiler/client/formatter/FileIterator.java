@@ -2,12 +2,28 @@ package com.dslplatform.compiler.client.formatter;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Arrays;
-import java.util.Iterator;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.regex.Pattern;
 
+/**
+ * Breadth-first walk over the source files below a root directory.
+ *
+ * <p>Excluded directories are pruned without being listed, and each entry is examined
+ * with a single file system call. When an executor is provided, directories are listed
+ * ahead of the iteration in parallel, while files are still returned in the same order
+ * as a sequential walk would produce them.
+ */
 public class FileIterator implements Iterable<File> {
+    /** Version control metadata and package manager caches never contain sources to format. */
+    public static final List<String> DEFAULT_EXCLUDES = Collections.unmodifiableList(
+            Arrays.asList(".git", ".hg", ".svn", "node_modules"));
+
+    private static final int MAX_PENDING_LISTINGS = 64;
+
     private static File resolveFile(final File file) {
         try {
             return file.getCanonicalFile();
@@ -16,43 +32,177 @@ public class FileIterator implements Iterable<File> {
         }
     }
 
+    /**
+     * Converts a glob into a pattern matched against a file name or a path relative to the root,
+     * using '/' as the separator: '**' matches across directories, '*' and '?' do not.
+     * A '**' followed by '/' also matches no directories at all, so that it matches at the top level.
+     */
+    public static Pattern globToPattern(final String glob) {
+        final StringBuilder sb = new StringBuilder();
+        final int length = glob.length();
+        int literal = 0;
+        for (int i = 0; i < length; i++) {
+            final char ch = glob.charAt(i);
+            if (ch != '*' && ch != '?') continue;
+
+            if (literal < i) sb.append(Pattern.quote(glob.substring(literal, i)));
+            if (ch == '?') {
+                sb.append("[^/]");
+            } else if (i + 2 < length && glob.charAt(i + 1) == '*' && glob.charAt(i + 2) == '/') {
+                sb.append("(?:.*/)?");
+                i += 2;
+            } else if (i + 1 < length && glob.charAt(i + 1) == '*') {
+                sb.append(".*");
+                i++;
+            } else {
+                sb.append("[^/]*");
+            }
+            literal = i + 1;
+        }
+        if (literal < length) sb.append(Pattern.quote(glob.substring(literal)));
+        return Pattern.compile(sb.toString());
+    }
+
     private final File root;
     private final Pattern pattern;
+    private final List<Pattern> excludes;
+    private final ExecutorService executor;
 
     public FileIterator(final File root, final Pattern pattern) {
+        this(root, pattern, DEFAULT_EXCLUDES, null);
+    }
+
+    public FileIterator(
+            final File root,
+            final Pattern pattern,
+            final List<String> excludes,
+            final ExecutorService executor) {
         this.root = root;
         this.pattern = pattern;
+        this.excludes = new ArrayList<Pattern>();
+        for (final String exclude : excludes) {
+            this.excludes.add(globToPattern(exclude.replace(File.separatorChar, '/')));
+        }
+        this.executor = executor;
+    }
+
+    private boolean isExcluded(final String name, final String relativePath) {
+        for (final Pattern exclude : excludes) {
+            if (exclude.matcher(name).matches() || exclude.matcher(relativePath).matches()) return true;
+        }
+        return false;
+    }
+
+    /** Lists a directory, keeping matching source files and directories which are not excluded. */
+    private List<Object> list(final File directory, final String relativePath) {
+        final File[] files = directory.listFiles();
+        if (files == null) return Collections.emptyList();
+
+        final List<Object> entries = new ArrayList<Object>(files.length);
+        for (final File file : files) {
+            final String name = file.getName();
+            final String childPath = relativePath.isEmpty() ? name : relativePath + '/' + name;
+            if (isExcluded(name, childPath)) continue;
+
+            if (pattern.matcher(file.getPath()).matches()) {
+                if (file.isFile()) {
+                    entries.add(file);
+                    continue;
+                }
+            }
+
+            if (file.isDirectory()) {
+                entries.add(new Listing(file, childPath));
+            }
+        }
+        return entries;
+    }
+
+    private class Listing implements Callable<List<Object>> {
+        private final File directory;
+        private final String relativePath;
+        private Future<List<Object>> future;
+
+        public Listing(final File directory, final String relativePath) {
+            this.directory = directory;
+            this.relativePath = relativePath;
+        }
+
+        public void prefetch() {
+            future = executor.submit(this);
+        }
+
+        @Override
+        public List<Object> call() {
+            return list(directory, relativePath);
+        }
+
+        public List<Object> get() {
+            if (future == null) return call();
+            try {
+                return future.get();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            } catch (final ExecutionException e) {
+                throw new RuntimeException(e.getCause());
+            }
+        }
     }
 
     public Iterator<File> iterator() {
         return new Iterator<File>() {
             public void remove() {}
 
-            private final ArrayDeque<File> stack = new ArrayDeque<File>(); {
-                stack.add(resolveFile(root));
+            private final ArrayDeque<Object> queue = new ArrayDeque<Object>();
+            private final ArrayDeque<Listing> unsubmitted = new ArrayDeque<Listing>();
+            private int submitted = 0; {
+                final File start = resolveFile(root);
+                if (start.isDirectory()) {
+                    enqueue(new Listing(start, ""));
+                } else if (start.isFile() && pattern.matcher(start.getPath()).matches()) {
+                    queue.add(start);
+                }
             }
 
             private boolean needsLocate = true;
             private File nextFile = null;
 
+            private void enqueue(final Object entry) {
+                queue.add(entry);
+                if (executor != null && entry instanceof Listing) {
+                    unsubmitted.add((Listing) entry);
+                    prefetch();
+                }
+            }
+
+            private void prefetch() {
+                while (submitted < MAX_PENDING_LISTINGS && !unsubmitted.isEmpty()) {
+                    unsubmitted.poll().prefetch();
+                    submitted++;
+                }
+            }
+
             private void locateNext() {
                 while (true) {
-                    final File file = stack.poll();
-                    if (file == null) {
+                    final Object entry = queue.poll();
+                    if (entry == null) {
                         nextFile = null;
                         return;
                     }
 
-                    if (file.isFile()) {
-                        if (!pattern.matcher(file.getPath()).matches()) continue;
-                        nextFile = file;
+                    if (entry instanceof File) {
+                        nextFile = (File) entry;
                         return;
                     }
 
-                    if (file.isDirectory()) {
-                        final File[] files = file.listFiles();
-                        if (files != null) stack.addAll(Arrays.asList(files));
+                    final Listing listing = (Listing) entry;
+                    final List<Object> children = listing.get();
+                    if (listing.future != null) submitted--;
+                    for (final Object child : children) {
+                        enqueue(child);
                     }
+                    prefetch();
                 }
             }
 
@@ -0,0 +1,183 @@
+package com.dslplatform.compiler.client.formatter;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * On-disk index of files which were already formatted, mapping each path to the
+ * digest of the last formatter output and to the fingerprint of the configuration
+ * which produced it. A file whose digest and fingerprint still match does not need
+ * to be formatted again.
+ *
+ * <p>For incremental formatting, the last output of every file is also kept in the
+ * {@code bodies} directory, named after the SHA-1 of the path.
+ */
+public class FormatCache {
+    private static final String HEADER = "dsl-clc-formatter-cache 1";
+
+    private static class Entry {
+        public final byte[] digest;
+        public final String fingerprint;
+
+        public Entry(final byte[] digest, final String fingerprint) {
+            this.digest = digest;
+            this.fingerprint = fingerprint;
+        }
+    }
+
+    private final Logger logger;
+    private final File index;
+    private final File bodies;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<String, Entry>();
+    private volatile boolean dirty;
+
+    public FormatCache(final Logger logger, final File directory) {
+        this.logger = logger;
+        this.index = new File(directory, "index");
+        this.bodies = new File(directory, "bodies");
+    }
+
+    public FormatCache load() throws IOException {
+        if (!index.isFile()) return this;
+
+        final BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(index), "UTF-8"));
+        try {
+            if (!HEADER.equals(br.readLine())) {
+                logger.debug("Ignoring cache with unknown format: {}", index);
+                return this;
+            }
+
+            while (true) {
+                final String line = br.readLine();
+                if (line == null) break;
+
+                final String[] parts = line.split(" ", 3);
+                if (parts.length != 3) {
+                    throw new IOException("Could not parse cache entry: " + line);
+                }
+                entries.put(parts[2], new Entry(DatatypeConverter.parseHexBinary(parts[0]), parts[1]));
+            }
+        } finally {
+            br.close();
+        }
+
+        logger.debug("Loaded {} cache entries from {}", entries.size(), index);
+        return this;
+    }
+
+    public boolean isFormatted(final Code code, final String fingerprint) {
+        final Entry entry = entries.get(code.path);
+        return entry != null
+                && entry.fingerprint.equals(fingerprint)
+                && Arrays.equals(entry.digest, code.digest);
+    }
+
+    public void update(final Code code, final String fingerprint) {
+        entries.put(code.path, new Entry(code.digest, fingerprint));
+        dirty = true;
+    }
+
+    private File getBodyFile(final String path) {
+        try {
+            final MessageDigest md = MessageDigest.getInstance("SHA-1");
+            final byte[] digest = md.digest(path.getBytes("UTF-8"));
+            return new File(bodies, DatatypeConverter.printHexBinary(digest).toLowerCase(Locale.ENGLISH));
+        } catch (final GeneralSecurityException e) {
+            throw new RuntimeException(e);
+        } catch (final UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Returns the output last written to the path, or {@code null} if it is not known or
+     * was produced by a different configuration, in which case it is not formatted anymore.
+     */
+    public String readBody(final String path, final String fingerprint) throws IOException {
+        final Entry entry = entries.get(path);
+        if (entry == null || !entry.fingerprint.equals(fingerprint)) return null;
+
+        final File file = getBodyFile(path);
+        if (!file.isFile()) return null;
+
+        final byte[] body = new byte[(int) file.length()];
+        final DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(body);
+        } finally {
+            dis.close();
+        }
+        return new String(body, "UTF-8");
+    }
+
+    public void writeBody(final String path, final String body) throws IOException {
+        if (!bodies.isDirectory() && !bodies.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + bodies);
+        }
+
+        final File file = getBodyFile(path);
+        final File temp = new File(bodies, file.getName() + ".tmp");
+        final OutputStream os = new FileOutputStream(temp);
+        try {
+            os.write(body.getBytes("UTF-8"));
+        } finally {
+            os.close();
+        }
+
+        if (!temp.renameTo(file)) {
+            file.delete();
+            if (!temp.renameTo(file)) {
+                throw new IOException("Could not replace cached body: " + file);
+            }
+        }
+    }
+
+    /** Persists the index, dropping entries (and bodies) of files which no longer exist. */
+    public void save() throws IOException {
+        if (!dirty) return;
+
+        final File parent = index.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs()) {
+            throw new IOException("Could not create cache directory: " + parent);
+        }
+
+        final File temp = new File(parent, index.getName() + ".tmp");
+        final Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            writer.write(HEADER);
+            writer.write('\n');
+            for (final Map.Entry<String, Entry> entry : entries.entrySet()) {
+                final String path = entry.getKey();
+                if (!new File(path).isFile()) {
+                    getBodyFile(path).delete();
+                    continue;
+                }
+
+                writer.write(DatatypeConverter.printHexBinary(entry.getValue().digest).toLowerCase(Locale.ENGLISH));
+                writer.write(' ');
+                writer.write(entry.getValue().fingerprint);
+                writer.write(' ');
+                writer.write(path);
+                writer.write('\n');
+            }
+        } finally {
+            writer.close();
+        }
+
+        if (!temp.renameTo(index)) {
+            index.delete();
+            if (!temp.renameTo(index)) {
+                throw new IOException("Could not replace cache index: " + index);
+            }
+        }
+
+        dirty = false;
+        logger.debug("Saved cache index: {}", index);
+    }
+}
@@ -0,0 +1,87 @@
+package com.dslplatform.compiler.client.formatter;
+
+import javax.xml.bind.DatatypeConverter;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Formatted output of recently seen sources, keyed by language and the SHA-1 of the source,
+ * so that identical files (such as the same helper classes emitted into several modules) are
+ * formatted only once. The least recently used entries are dropped once the outputs take more
+ * than the size bound. It lives as long as its {@link Main}, so a daemon keeps it across
+ * requests until the formatter configuration changes.
+ */
+class FormatMemo {
+    private final long maxBytes;
+    private final LinkedHashMap<String, String> entries = new LinkedHashMap<String, String>(256, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public FormatMemo(final long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    private static String key(final String language, final byte[] digest) {
+        return language + ':' + DatatypeConverter.printHexBinary(digest);
+    }
+
+    private static long sizeOf(final String output) {
+        return output.length() * 2L;
+    }
+
+    /** Returns the output formatted from a source with the same digest, or {@code null}. */
+    public String get(final String language, final byte[] digest) {
+        final String output;
+        synchronized (entries) {
+            output = entries.get(key(language, digest));
+        }
+        (output != null ? hits : misses).incrementAndGet();
+        return output;
+    }
+
+    public void put(final String language, final byte[] digest, final String output) {
+        final long size = sizeOf(output);
+        if (size > maxBytes) return;
+
+        synchronized (entries) {
+            final String previous = entries.put(key(language, digest), output);
+            bytes += size - (previous != null ? sizeOf(previous) : 0L);
+
+            final Iterator<Map.Entry<String, String>> eldest = entries.entrySet().iterator();
+            while (bytes > maxBytes) {
+                bytes -= sizeOf(eldest.next().getValue());
+                eldest.remove();
+                evictions.incrementAndGet();
+            }
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** Logs the hits and misses since the provided counts, e.g. those at the start of a run. */
+    public void report(final Logger logger, final long hitsBefore, final long missesBefore) {
+        final int count;
+        final long size;
+        synchronized (entries) {
+            count = entries.size();
+            size = bytes;
+        }
+        logger.info("Memo: {} hits, {} misses, {} entries taking {} KB, {} evicted",
+                hits.get() - hitsBefore,
+                misses.get() - missesBefore,
+                count,
+                size / 1024,
+                evictions.get());
+    }
+}
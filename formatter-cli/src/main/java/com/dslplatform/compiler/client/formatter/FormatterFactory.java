@@ -4,19 +4,49 @@ import com.dslplatform.compiler.client.formatter.impl.FormatterCombinator;
 import com.dslplatform.compiler.client.formatter.impl.NewlineTrimFormatter;
 import com.dslplatform.compiler.client.formatter.impl.NoopFormatter;
 import com.dslplatform.compiler.client.formatter.impl.PatternFormatter;
+import com.dslplatform.compiler.client.formatter.impl.PooledFormatter;
+import com.dslplatform.compiler.client.formatter.impl.Profiler;
 
+import javax.xml.bind.DatatypeConverter;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 class FormatterFactory {
-    private final Logger logger;
-
-    public FormatterFactory(final Logger logger) {
+    private final BufferedLogger logger;
+    private final ArtifactManifest manifest;
+    private final MirrorResolver resolver;
+    private final LocalCaches localCaches = LocalCaches.getDefault();
+    private final Profiler profiler = new Profiler();
+    private final boolean mergeDependencies;
+    private final Map<String, FormatterProvider> classpathProviders = new HashMap<String, FormatterProvider>();
+
+    public FormatterFactory(final BufferedLogger logger, final boolean paranoid, final boolean mergeDependencies) {
         this.logger = logger;
+        this.mergeDependencies = mergeDependencies;
+        this.manifest = new ArtifactManifest(logger, ArtifactDownload.TEMP_DIR, paranoid);
+        this.resolver = new MirrorResolver(logger, ArtifactDownload.TEMP_DIR);
+        try {
+            for (final FormatterProvider provider : ServiceLoader.load(FormatterProvider.class, FormatterFactory.class.getClassLoader())) {
+                for (final String extension : provider.getExtensions()) {
+                    if (!classpathProviders.containsKey(extension)) classpathProviders.put(extension, provider);
+                }
+            }
+        } catch (final ServiceConfigurationError e) {
+            logger.error("Could not load formatter providers from the class path: {}", e);
+        }
+    }
+
+    /** Records the stages and pattern passes of every formatter this factory creates. */
+    public Profiler getProfiler() {
+        return profiler;
     }
 
     private InputStream readResource(final String name) throws IOException {
@@ -30,12 +60,17 @@ class FormatterFactory {
 
     private Properties readProperties(final String name) throws IOException {
         final Properties properties = new Properties();
-        properties.load(readResource(name));
+        final InputStream is = readResource(name);
+        if (is != null) {
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+        }
         return properties;
     }
 
-    private static final String SCALA_VERSION = "2.11.8";
-
     private static final Pattern repositoryPattern = Pattern.compile("\"([^\"]+)\" +at +\"([^\"]+)\"");
     private static final Pattern artifactPattern = Pattern.compile("\"([^\"]+)\" +% +\"([^\"]+)\" +% +\"([^\"]+)\" +// +(\\d+) bytes, SHA-1: ([a-f0-9]{40})");
 
@@ -43,26 +78,35 @@ class FormatterFactory {
         try {
             final BufferedReader br = new BufferedReader(new InputStreamReader(readResource(name), "UTF-8"));
 
-            final String repositoryLine = br.readLine();
-            final Matcher repositoryMatcher = repositoryPattern.matcher(repositoryLine);
-            if (!repositoryMatcher.find()) {
-                throw new IOException("Could not parse repository: " + repositoryLine);
-            }
-            final Repository repository = new Repository(repositoryMatcher.group(1), new URI(repositoryMatcher.group(2)));
-
+            final List<Repository> repositories = new ArrayList<Repository>();
             final List<ArtifactDownload> artifacts = new ArrayList<ArtifactDownload>();
             while (true) {
-                final String artifactLine = br.readLine();
-                if (artifactLine == null) break;
-                if (artifactLine.isEmpty()) continue;
+                final String line = br.readLine();
+                if (line == null) break;
+                if (line.isEmpty()) continue;
+
+                if (artifacts.isEmpty()) {
+                    final Matcher repositoryMatcher = repositoryPattern.matcher(line);
+                    if (repositoryMatcher.find()) {
+                        repositories.add(new Repository(repositoryMatcher.group(1), new URI(repositoryMatcher.group(2))));
+                        continue;
+                    }
+                    if (repositories.isEmpty()) {
+                        throw new IOException("Could not parse repository: " + line);
+                    }
+                }
 
-                final Matcher artifactMatcher = artifactPattern.matcher(artifactLine);
+                final Matcher artifactMatcher = artifactPattern.matcher(line);
                 if (!artifactMatcher.find()) {
-                    throw new IOException("Could not parse artifact: " + artifactLine);
+                    throw new IOException("Could not parse artifact: " + line);
                 }
                 artifacts.add(new ArtifactDownload(
                         logger,
-                        repository,
+                        manifest,
+                        resolver,
+                        localCaches,
+                        ArtifactDownload.TEMP_DIR,
+                        repositories,
                         artifactMatcher.group(1),
                         artifactMatcher.group(2),
                         artifactMatcher.group(3),
@@ -75,94 +119,275 @@ class FormatterFactory {
         }
     }
 
-    private final Map<String, Formatter> formatters = new HashMap<String, Formatter>();
+    /** SHA-1 of every artifact the supported languages depend on. */
+    public List<String> getArtifactHashes() throws IOException {
+        final List<String> hashes = new ArrayList<String>();
+        for (final String language : LANGUAGES) {
+            for (final ArtifactDownload artifact : readDependencies(resourcePrefix(language) + "-dependencies.sbt").getArtifacts()) {
+                hashes.add(artifact.hexSha1);
+            }
+        }
+        return hashes;
+    }
 
-    public Formatter getFormatter(final String language) {
-        final String lowerLang = language.toLowerCase(Locale.ENGLISH);
+    public static final String[] LANGUAGES = { "cs", "java", "php", "scala", "sql" };
 
-        synchronized (formatters) {
-            final Formatter cachedFormatter = formatters.get(lowerLang);
-            if (cachedFormatter != null) return cachedFormatter;
+    private static final String[] CONFIGURATION_SUFFIXES = {
+            "-dependencies.sbt", "-clean.regex", "-format.properties", "-post.regex" };
 
-            final Formatter formatter = createFormatter(lowerLang);
-            formatters.put(lowerLang, formatter);
+    private final Map<String, String> fingerprints = new ConcurrentHashMap<String, String>();
 
-            return formatter;
+    private static String resourcePrefix(final String language) {
+        return language.equals("cs") ? "csharp" : language;
+    }
+
+    /**
+     * Digest of everything which determines the output of a language pipeline:
+     * the formatter version, the regex rules, the formatter properties and the
+     * dependency list (which includes the SHA-1 of every artifact).
+     */
+    public String getFingerprint(final String language) throws IOException {
+        final String lowerLang = language.toLowerCase(Locale.ENGLISH);
+        final String cachedFingerprint = fingerprints.get(lowerLang);
+        if (cachedFingerprint != null) return cachedFingerprint;
+
+        final String fingerprint = computeFingerprint(lowerLang);
+        fingerprints.put(lowerLang, fingerprint);
+        return fingerprint;
+    }
+
+    /** Freshly computed fingerprint of all supported languages, used to detect configuration changes. */
+    public String getConfigurationFingerprint() throws IOException {
+        final StringBuilder sb = new StringBuilder();
+        for (final String language : LANGUAGES) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(computeFingerprint(language));
         }
+        return sb.toString();
     }
 
-    @SuppressWarnings("unchecked")
-    private Formatter createFormatter(final String language) {
+    private String computeFingerprint(final String lowerLang) throws IOException {
+        final MessageDigest md;
         try {
-            logger.debug("Creating formatter for language: {}", language);
-            if (language.equals("cs")) {
-                final Class<Formatter> clazz = (Class<Formatter>) readDependencies("csharp-dependencies.sbt").getClassLoader()
-                        .loadClass("com.dslplatform.compiler.client.formatter.impl.CSharpCodeFormatter");
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
 
-                final Formatter csharpCodeFormatter = clazz.getConstructor(Logger.class).newInstance(logger);
+        final Package pkg = FormatterFactory.class.getPackage();
+        final String version = pkg != null ? pkg.getImplementationVersion() : null;
+        md.update(String.valueOf(version).getBytes("UTF-8"));
+
+        final byte[] buffer = new byte[8192];
+        for (final String suffix : CONFIGURATION_SUFFIXES) {
+            final String name = resourcePrefix(lowerLang) + suffix;
+            md.update((byte) 0);
+            md.update(name.getBytes("UTF-8"));
+
+            final InputStream is = readResource(name);
+            if (is == null) continue;
+            try {
+                md.update((byte) 1);
+                while (true) {
+                    final int read = is.read(buffer);
+                    if (read == -1) break;
+                    md.update(buffer, 0, read);
+                }
+            } finally {
+                is.close();
+            }
+        }
+
+        return DatatypeConverter.printHexBinary(md.digest()).toLowerCase(Locale.ENGLISH);
+    }
 
-                return new FormatterCombinator(logger,
-                        PatternFormatter.fromInputStream(logger, readResource("csharp-clean.regex")),
-                        csharpCodeFormatter,
-                        PatternFormatter.fromInputStream(logger, readResource("csharp-post.regex")),
-                        new NewlineTrimFormatter(logger, "\r\n"));
+    private final ConcurrentMap<String, Future<ClassLoader>> classLoaders = new ConcurrentHashMap<String, Future<ClassLoader>>();
+    private final ConcurrentMap<String, Warmup> warmups = new ConcurrentHashMap<String, Warmup>();
+
+    private final ExecutorService background = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "formatter-prefetch");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static <T> T await(final Future<T> future) throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return future.get();
+                } catch (final InterruptedException e) {
+                    interrupted = true;
+                }
             }
+        } finally {
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+    }
 
-            if (language.equals("java")) {
-                final Class<Formatter> clazz = (Class<Formatter>) readDependencies("java-dependencies.sbt").getClassLoader()
-                        .loadClass("com.dslplatform.compiler.client.formatter.impl.JavaCodeFormatter");
+    /**
+     * Formatter of a language, created in the background and shared by all threads.
+     * Messages logged while creating it are kept until the first thread which needs
+     * the language picks it up, so they end up in the log of the file which triggered
+     * the initialization.
+     */
+    private class Warmup implements Callable<Formatter> {
+        private final String language;
+        private final BufferedLogger.Buffer buffer = new BufferedLogger.Buffer();
+        private final FutureTask<Formatter> task = new FutureTask<Formatter>(this);
+        private final AtomicBoolean taken = new AtomicBoolean();
+
+        public Warmup(final String language) {
+            this.language = language;
+        }
 
-                final Formatter javaCodeFormatter = clazz.getConstructor(Logger.class, Properties.class, String.class)
-                        .newInstance(logger, readProperties("java-format.properties"), "\n");
+        @Override
+        public Formatter call() {
+            logger.attach(buffer);
+            try {
+                return createFormatter(language);
+            } finally {
+                logger.detach();
+            }
+        }
 
-                return new FormatterCombinator(logger,
-                        PatternFormatter.fromInputStream(logger, readResource("java-clean.regex")),
-                        javaCodeFormatter,
-                        PatternFormatter.fromInputStream(logger, readResource("java-post.regex")),
-                        new NewlineTrimFormatter(logger, "\n"));
+        public Formatter take() {
+            final Formatter formatter;
+            try {
+                formatter = await(task);
+            } catch (final ExecutionException e) {
+                throw new RuntimeException(e.getCause());
             }
 
-            if (language.equals("php")) {
-                final Class<Formatter> clazz = (Class<Formatter>) readDependencies("php-dependencies.sbt").getClassLoader()
-                        .loadClass("com.dslplatform.compiler.client.formatter.impl.PHPCodeFormatter");
+            if (!taken.get() && taken.compareAndSet(false, true)) {
+                buffer.replay(logger);
+            }
+            return formatter;
+        }
+    }
+
+    /**
+     * Starts resolving the dependencies and creating the formatter of a language on a
+     * background thread, so that the language is ready by the time its first file is read.
+     * Languages are initialized independently, and each one is initialized only once.
+     */
+    public void prefetch(final String language) {
+        getWarmup(language.toLowerCase(Locale.ENGLISH));
+    }
+
+    private Warmup getWarmup(final String lowerLang) {
+        final Warmup cachedWarmup = warmups.get(lowerLang);
+        if (cachedWarmup != null) return cachedWarmup;
+
+        final Warmup warmup = new Warmup(lowerLang);
+        final Warmup previous = warmups.putIfAbsent(lowerLang, warmup);
+        if (previous != null) return previous;
 
-                final Formatter phpCodeFormatter = clazz.getConstructor(Logger.class).newInstance(logger);
+        background.execute(warmup.task);
+        return warmup;
+    }
+
+    /**
+     * Returns the formatter of a language, which can be used from any thread: formatters of
+     * providers which are not thread-safe are pooled. A language which failed to initialize
+     * is not retried, so it is reported only once.
+     */
+    public Formatter getFormatter(final String language) {
+        return getWarmup(language.toLowerCase(Locale.ENGLISH)).take();
+    }
 
-                return new FormatterCombinator(logger,
-                        PatternFormatter.fromInputStream(logger, readResource("php-clean.regex")),
-                        phpCodeFormatter,
-                        PatternFormatter.fromInputStream(logger, readResource("php-post.regex")),
-                        new NewlineTrimFormatter(logger, "\n"));
+    private ClassLoader getClassLoader(final String dependencies) throws IOException {
+        Future<ClassLoader> classLoader = classLoaders.get(dependencies);
+        if (classLoader == null) {
+            final FutureTask<ClassLoader> task = new FutureTask<ClassLoader>(new Callable<ClassLoader>() {
+                @Override
+                public ClassLoader call() throws IOException {
+                    return readDependencies(dependencies).getClassLoader(mergeDependencies);
+                }
+            });
+            classLoader = classLoaders.putIfAbsent(dependencies, task);
+            if (classLoader == null) {
+                classLoader = task;
+                task.run();
             }
+        }
 
-            if (language.equals("scala")) {
-                final Class<Formatter> clazz = (Class<Formatter>) readDependencies("scala-dependencies.sbt").getClassLoader()
-                        .loadClass("com.dslplatform.compiler.client.formatter.impl.ScalaCodeFormatter");
+        try {
+            return await(classLoader);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
 
-                final Formatter scalaCodeFormatter = clazz.getConstructor(Logger.class, Properties.class, String.class, String.class)
-                        .newInstance(logger, readProperties("scala-format.properties"), "\n", SCALA_VERSION);
+    private static boolean handles(final FormatterProvider provider, final String language) {
+        for (final String extension : provider.getExtensions()) {
+            if (extension.equals(language)) return true;
+        }
+        return false;
+    }
 
-                return new FormatterCombinator(logger,
-                        PatternFormatter.fromInputStream(logger, readResource("scala-clean.regex")),
-                        scalaCodeFormatter,
-                        PatternFormatter.fromInputStream(logger, readResource("scala-post.regex")),
-                        new NewlineTrimFormatter(logger, "\n"));
+    /**
+     * Providers already on the class path take precedence. Otherwise the language module is
+     * downloaded, and if it does not register a provider (released modules predate them),
+     * its formatter is instantiated through reflection.
+     */
+    private FormatterProvider getProvider(final String language) throws IOException, ClassNotFoundException {
+        final FormatterProvider classpathProvider = classpathProviders.get(language);
+        if (classpathProvider != null) return classpathProvider;
+        if (!Arrays.asList(LANGUAGES).contains(language)) return null;
+
+        final ClassLoader classLoader = getClassLoader(resourcePrefix(language) + "-dependencies.sbt");
+        try {
+            for (final FormatterProvider provider : ServiceLoader.load(FormatterProvider.class, classLoader)) {
+                if (handles(provider, language)) return provider;
             }
+        } catch (final ServiceConfigurationError e) {
+            throw new IOException("Could not load formatter provider for language " + language, e);
+        }
 
-            if (language.equals("sql")) {
-                final Class<Formatter> clazz = (Class<Formatter>) readDependencies("sql-dependencies.sbt").getClassLoader()
-                        .loadClass("com.dslplatform.compiler.client.formatter.impl.SQLCodeFormatter");
+        final String impl = "com.dslplatform.compiler.client.formatter.impl.";
+        if (language.equals("cs")) {
+            return new ReflectiveFormatterProvider(language, true, classLoader.loadClass(impl + "CSharpCodeFormatter"));
+        }
+        if (language.equals("java")) {
+            return new ReflectiveFormatterProvider(language, false, classLoader.loadClass(impl + "JavaCodeFormatter"), "\n");
+        }
+        if (language.equals("php")) {
+            return new ReflectiveFormatterProvider(language, true, classLoader.loadClass(impl + "PHPCodeFormatter"));
+        }
+        if (language.equals("scala")) {
+            return new ReflectiveFormatterProvider(language, true, classLoader.loadClass(impl + "ScalaCodeFormatter"), "\n", "2.11.8");
+        }
+        return new ReflectiveFormatterProvider(language, true, classLoader.loadClass(impl + "SQLCodeFormatter"));
+    }
 
-                final Formatter sqlCodeFormatter = clazz.getConstructor(Logger.class).newInstance(logger);
-                return new FormatterCombinator(logger,
-                        PatternFormatter.fromInputStream(logger, readResource("sql-clean.regex")),
-                        sqlCodeFormatter,
-                        PatternFormatter.fromInputStream(logger, readResource("sql-post.regex")),
-                        new NewlineTrimFormatter(logger, "\n"));
+    private Formatter createFormatter(final String language) {
+        try {
+            logger.debug("Creating formatter for language: {}", language);
+            final FormatterProvider provider = getProvider(language);
+            if (provider == null) {
+                logger.error("Language {} is not supported!", language);
+                return NoopFormatter.INSTANCE;
             }
 
-            logger.error("Language {} is not supported!", language);
-            return NoopFormatter.INSTANCE;
+            final String prefix = resourcePrefix(language);
+            final Properties properties = readProperties(prefix + "-format.properties");
+            final Formatter codeFormatter = provider.isThreadSafe()
+                    ? provider.createFormatter(logger, properties)
+                    : new PooledFormatter(logger, provider, properties);
+
+            final String clean = prefix + "-clean.regex";
+            final String post = prefix + "-post.regex";
+            return new FormatterCombinator(logger,
+                    profiler.profile(prefix + " clean", FormatterCombinator.adapt(PatternFormatter.fromInputStream(logger, profiler, clean, readResource(clean)))),
+                    profiler.profile(prefix + " code", FormatterCombinator.adapt(codeFormatter)),
+                    profiler.profile(prefix + " post", FormatterCombinator.adapt(PatternFormatter.fromInputStream(logger, profiler, post, readResource(post)))),
+                    profiler.profile(prefix + " trim", new NewlineTrimFormatter(logger, language.equals("cs") ? "\r\n" : "\n")));
         } catch (final Exception e) {
             logger.error("Could not create formatter for language {}: {}", language, e);
             return NoopFormatter.INSTANCE;
@@ -0,0 +1,54 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/** Length-prefixed UTF-8 strings and byte arrays, used by the daemon and batch protocols. */
+class Frames {
+    private Frames() {}
+
+    public static void writeBytes(final DataOutputStream dos, final byte[] bytes) throws IOException {
+        dos.writeInt(bytes.length);
+        dos.write(bytes);
+    }
+
+    public static byte[] readBytes(final DataInputStream dis) throws IOException {
+        return readBytes(dis, dis.readInt());
+    }
+
+    private static byte[] readBytes(final DataInputStream dis, final int length) throws IOException {
+        return readBytes(dis, length, Integer.MAX_VALUE);
+    }
+
+    private static byte[] readBytes(final DataInputStream dis, final int length, final int maxLength) throws IOException {
+        if (length < 0 || length > maxLength) {
+            throw new IOException("Invalid frame length: " + length);
+        }
+        final byte[] bytes = new byte[length];
+        dis.readFully(bytes);
+        return bytes;
+    }
+
+    public static void writeString(final DataOutputStream dos, final String value) throws IOException {
+        writeBytes(dos, value.getBytes("UTF-8"));
+    }
+
+    public static String readString(final DataInputStream dis) throws IOException {
+        return new String(readBytes(dis), "UTF-8");
+    }
+
+    /** Reads a string of at most the provided length in bytes, before allocating anything for it. */
+    public static String readString(final DataInputStream dis, final int maxLength) throws IOException {
+        return new String(readBytes(dis, dis.readInt(), maxLength), "UTF-8");
+    }
+
+    /** Reads a string which starts a new record, returning {@code null} at the end of the stream. */
+    public static String readRecordStart(final DataInputStream dis) throws IOException {
+        final int first = dis.read();
+        if (first == -1) return null;
+
+        final int length = (first << 24) | (dis.readUnsignedByte() << 16) | (dis.readUnsignedByte() << 8) | dis.readUnsignedByte();
+        return new String(readBytes(dis, length), "UTF-8");
+    }
+}
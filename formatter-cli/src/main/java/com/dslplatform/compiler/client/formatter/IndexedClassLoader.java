@@ -0,0 +1,129 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.*;
+import java.lang.reflect.Method;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Class loader over a single {@link MergedArchive}: a class is resolved with one lookup in
+ * the central directory of the archive, instead of probing every jar of a class path in turn.
+ *
+ * <p>Classes are loaded under a lock per class name, and the loader registers itself as
+ * parallel capable where the JVM supports it (Java 7+), so that formatters of different
+ * languages can be initialized concurrently.
+ */
+class IndexedClassLoader extends ClassLoader {
+    static {
+        try {
+            final Method register = ClassLoader.class.getDeclaredMethod("registerAsParallelCapable");
+            register.setAccessible(true);
+            register.invoke(null);
+        } catch (final Exception e) {
+            // Java 6, loading is serialized by the JVM
+        }
+    }
+
+    private final ZipFile archive;
+    private final URL archiveUrl;
+    private final ProtectionDomain protectionDomain;
+    private final ConcurrentMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+
+    public IndexedClassLoader(final File archive, final ClassLoader parent) throws IOException {
+        super(parent);
+        this.archive = new ZipFile(archive);
+        this.archiveUrl = archive.toURI().toURL();
+        this.protectionDomain = new ProtectionDomain(new CodeSource(archiveUrl, (Certificate[]) null), null, this, null);
+    }
+
+    private Object getLock(final String name) {
+        final Object lock = new Object();
+        final Object previous = locks.putIfAbsent(name, lock);
+        return previous != null ? previous : lock;
+    }
+
+    @Override
+    protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+        synchronized (getLock(name)) {
+            Class<?> clazz = findLoadedClass(name);
+            if (clazz == null) {
+                try {
+                    clazz = getParent().loadClass(name);
+                } catch (final ClassNotFoundException e) {
+                    clazz = findClass(name);
+                }
+            }
+            if (resolve) resolveClass(clazz);
+            return clazz;
+        }
+    }
+
+    private byte[] read(final ZipEntry entry) throws IOException {
+        final InputStream is = archive.getInputStream(entry);
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream(entry.getSize() > 0 ? (int) entry.getSize() : 8192);
+            final byte[] buffer = new byte[8192];
+            while (true) {
+                final int read = is.read(buffer);
+                if (read == -1) return body.toByteArray();
+                body.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(final String name) throws ClassNotFoundException {
+        final ZipEntry entry = archive.getEntry(name.replace('.', '/') + ".class");
+        if (entry == null) throw new ClassNotFoundException(name);
+
+        final byte[] body;
+        try {
+            body = read(entry);
+        } catch (final IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+
+        final int lastDot = name.lastIndexOf('.');
+        if (lastDot != -1) {
+            final String packageName = name.substring(0, lastDot);
+            if (getPackage(packageName) == null) {
+                try {
+                    definePackage(packageName, null, null, null, null, null, null, null);
+                } catch (final IllegalArgumentException e) {
+                    // defined concurrently by another thread
+                }
+            }
+        }
+
+        return defineClass(name, body, 0, body.length, protectionDomain);
+    }
+
+    @Override
+    protected URL findResource(final String name) {
+        if (archive.getEntry(name) == null) return null;
+        try {
+            return new URL("jar:" + archiveUrl + "!/" + name);
+        } catch (final MalformedURLException e) {
+            return null;
+        }
+    }
+
+    @Override
+    protected Enumeration<URL> findResources(final String name) {
+        final URL url = findResource(name);
+        return url == null
+                ? Collections.enumeration(Collections.<URL>emptyList())
+                : Collections.enumeration(Collections.singletonList(url));
+    }
+}
@@ -0,0 +1,45 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Artifact caches of other build tools on the same machine, i.e. the local Maven repository
+ * and the Ivy cache used by sbt. An artifact found there with the expected length and SHA-1
+ * is used in place, instead of downloading a copy into the formatter cache.
+ */
+class LocalCaches {
+    private final File mavenRepository;
+    private final File ivyCache;
+
+    public LocalCaches(final File mavenRepository, final File ivyCache) {
+        this.mavenRepository = mavenRepository;
+        this.ivyCache = ivyCache;
+    }
+
+    /** Honors the same overrides as Maven ({@code maven.repo.local}) and sbt ({@code sbt.ivy.home}). */
+    public static LocalCaches getDefault() {
+        final String userHome = System.getProperty("user.home");
+        final String mavenRepository = System.getProperty("maven.repo.local");
+        final String ivyHome = System.getProperty("sbt.ivy.home");
+        return new LocalCaches(
+                mavenRepository != null ? new File(mavenRepository) : new File(userHome, ".m2/repository"),
+                new File(ivyHome != null ? new File(ivyHome) : new File(userHome, ".ivy2"), "cache"));
+    }
+
+    /** Paths where the caches would hold the artifact; they do not necessarily exist. */
+    public List<File> getCandidates(final String groupId, final String artifactId, final String version) {
+        final String jarName = artifactId + "-" + version + ".jar";
+        final List<File> candidates = new ArrayList<File>(3);
+        if (mavenRepository != null) {
+            candidates.add(new File(mavenRepository, groupId.replace('.', '/') + '/' + artifactId + '/' + version + '/' + jarName));
+        }
+        if (ivyCache != null) {
+            final File module = new File(ivyCache, groupId + '/' + artifactId);
+            candidates.add(new File(module, "jars/" + jarName));
+            candidates.add(new File(module, "bundles/" + jarName));
+        }
+        return candidates;
+    }
+}
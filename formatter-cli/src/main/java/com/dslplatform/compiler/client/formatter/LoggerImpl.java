@@ -1,6 +1,23 @@
 package com.dslplatform.compiler.client.formatter;
 
+import java.io.PrintStream;
+
 public class LoggerImpl implements Logger {
+    private final PrintStream out;
+
+    public LoggerImpl() {
+        this(System.out);
+    }
+
+    /** Used when standard output carries the formatted sources. */
+    public LoggerImpl(final PrintStream out) {
+        this.out = out;
+    }
+
+    static String render(final String format, final Object... params) {
+        return String.format(format.replace("{}", "%s"), params);
+    }
+
     @Override
     public void debug(String format, Object... params) {
 //        System.out.println(String.format("DEBUG: " + format.replace("{}", "%s"), params));
@@ -8,12 +25,12 @@ public class LoggerImpl implements Logger {
 
     @Override
     public void info(String format, Object... params) {
-        System.out.println(String.format("INFO: " + format.replace("{}", "%s"), params));
+        out.println("INFO: " + render(format, params));
     }
 
     @Override
     public void error(String format, Object... params) {
-        System.out.println(String.format("ERROR: " + format.replace("{}", "%s"), params));
+        out.println("ERROR: " + render(format, params));
 
         for (final Object param : params) {
             if (param instanceof Exception) {
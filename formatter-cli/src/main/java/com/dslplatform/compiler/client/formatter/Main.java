@@ -1,61 +1,541 @@
 package com.dslplatform.compiler.client.formatter;
 
-import java.io.File;
-import java.io.IOException;
+import com.dslplatform.compiler.client.formatter.impl.FormatterCombinator;
+import com.dslplatform.compiler.client.formatter.impl.NoopFormatter;
+
+import java.io.*;
 import java.nio.charset.Charset;
+import java.util.ArrayDeque;
 import java.util.Locale;
+import java.util.concurrent.*;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 public class Main {
-    private final Logger logger;
+    private static final Pattern SOURCE_PATTERN = Pattern.compile(".*\\.(cs|java|php|scala|sql)");
+
+    private final BufferedLogger logger;
     private final CodeIO codeIO;
     private final FormatterFactory formatterFactory;
+    private final FormatMemo memo;
 
     public Main(final Logger logger) {
-        this.logger = logger;
-        this.codeIO = new CodeIO(logger, Charset.forName("UTF-8"));
-        this.formatterFactory = new FormatterFactory(logger);
+        this(logger, Arguments.parse(new String[0]));
     }
 
-    private void process(final Formatter formatter, final File file) throws IOException {
-        final Code code = codeIO.read(file);
-        final String formatted = formatter.format(file.getAbsolutePath(), code.body);
-        codeIO.write(code, formatted);
+    /** Only the options which affect how the formatters are loaded are taken from the arguments. */
+    public Main(final Logger logger, final Arguments arguments) {
+        this.logger = new BufferedLogger(logger);
+        this.codeIO = new CodeIO(this.logger, Charset.forName("UTF-8"));
+        this.formatterFactory = new FormatterFactory(this.logger, arguments.paranoid, arguments.mergeDependencies);
+        this.memo = arguments.memoSize > 0 ? new FormatMemo(arguments.memoSize * 1024L * 1024L) : null;
     }
 
-    private void format(final File file) {
-        final Pattern extensionMatch = Pattern.compile("^.*?\\.([^.]+)$");
-        final Matcher extensionMatcher = extensionMatch.matcher(file.getName());
+    private static final Pattern EXTENSION_PATTERN = Pattern.compile("^.*?\\.([^.]+)$");
 
-        if (extensionMatcher.find()) {
-            final String extension = extensionMatcher.group(1).toLowerCase(Locale.ENGLISH);
+    /**
+     * A file travelling through the pipeline: it is read on the I/O stage, formatted on the
+     * CPU stage and written on the write-behind stage. Log messages from all stages are
+     * collected in its buffer and replayed in submission order once the file is done.
+     */
+    private class FileJob {
+        private final File file;
+        private final FormatCache cache;
+        private final CodeIO.WriteMode writeMode;
+        private final boolean incremental;
+        private final Stages stages;
+        private final BufferedLogger.Buffer buffer = new BufferedLogger.Buffer();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Throwable failure;
+
+        private String extension;
+        private Code code;
+        private String fingerprint;
+        private String formatted;
+        private boolean failed;
+
+        public FileJob(
+                final File file,
+                final FormatCache cache,
+                final CodeIO.WriteMode writeMode,
+                final boolean incremental,
+                final Stages stages) {
+            this.file = file;
+            this.cache = cache;
+            this.writeMode = writeMode;
+            this.incremental = incremental;
+            this.stages = stages;
+        }
+
+        private void step(final Stage stage, final Callable<Void> step) {
+            stage.submit(new Runnable() {
+                @Override
+                public void run() {
+                    logger.attach(buffer);
+                    try {
+                        step.call();
+                    } catch (final Exception e) {
+                        logger.error("Caught exception when formatting {}: {}", file, e);
+                        done.countDown();
+                    } catch (final Throwable t) {
+                        failure = t;
+                        done.countDown();
+                    } finally {
+                        logger.detach();
+                    }
+                }
+            });
+        }
+
+        public void start() {
+            step(stages.read, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    read();
+                    return null;
+                }
+            });
+        }
+
+        private void read() throws IOException {
+            final Matcher extensionMatcher = EXTENSION_PATTERN.matcher(file.getName());
+            if (!extensionMatcher.find()) {
+                done.countDown();
+                return;
+            }
+
+            extension = extensionMatcher.group(1).toLowerCase(Locale.ENGLISH);
+            code = codeIO.read(file);
+
+            step(stages.format, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    format();
+                    return null;
+                }
+            });
+        }
+
+        private void format() throws IOException {
             final Formatter formatter = formatterFactory.getFormatter(extension);
 
-            if (formatter != null) {
-                try {
-                    process(formatter, file);
+            String previous = null;
+            if (cache != null && formatter != NoopFormatter.INSTANCE) {
+                fingerprint = formatterFactory.getFingerprint(extension);
+                if (cache.isFormatted(code, fingerprint)) {
+                    logger.debug("File was already formatted: {}", code.path);
+                    code = null;
+                    done.countDown();
                     return;
-                } catch (final Exception e) {
-                    logger.error("Caught exception when formatting {}: {}", file, e);
                 }
+                if (incremental) previous = cache.readBody(code.path, fingerprint);
+            }
+
+            final TextBuffer buffer = formatOrReuse(formatter, extension, file.getAbsolutePath(), code.body, code.digest, previous);
+            formatted = buffer.toString();
+            failed = buffer.hasFailed();
+
+            step(stages.write, new Callable<Void>() {
+                @Override
+                public Void call() throws IOException {
+                    write();
+                    return null;
+                }
+            });
+        }
+
+        private void write() throws IOException {
+            final Code result = codeIO.write(code, formatted, writeMode);
+            if (failed) {
+                logger.debug("Not caching the partially formatted file: {}", result.path);
+            } else if (fingerprint != null) {
+                if (incremental) cache.writeBody(result.path, formatted);
+                cache.update(result, fingerprint);
+            }
+            code = null;
+            formatted = null;
+            done.countDown();
+        }
+
+        public boolean isDone() {
+            return done.getCount() == 0;
+        }
+
+        /**
+         * Waits for the file and replays its log messages, so the output is in the same order
+         * as in a sequential run. Errors thrown while formatting are rethrown on the calling thread.
+         */
+        public void complete(final Logger output) {
+            try {
+                done.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+
+            buffer.replay(output);
+            if (failure instanceof Error) throw (Error) failure;
+            if (failure instanceof RuntimeException) throw (RuntimeException) failure;
+            if (failure != null) throw new RuntimeException(failure);
+        }
+    }
+
+    private static TextBuffer format(final Formatter formatter, final String path, final String body, final String previous) {
+        final TextBuffer buffer = new TextBuffer(body, previous);
+        FormatterCombinator.adapt(formatter).format(path, buffer);
+        return buffer;
+    }
+
+    /**
+     * Formats the body, reusing the output of an identical source of the same language if there
+     * is one, or else restricting the formatter to what changed since the previous output.
+     * The returned buffer tells whether any stage failed, in which case the output is not reused.
+     */
+    private TextBuffer formatOrReuse(
+            final Formatter formatter,
+            final String language,
+            final String path,
+            final String body,
+            final byte[] digest,
+            final String previous) {
+        if (memo == null || formatter == NoopFormatter.INSTANCE) return format(formatter, path, body, previous);
+
+        final String memoized = memo.get(language, digest);
+        if (memoized != null) {
+            logger.debug("Reusing the output of an identical source for {}", path);
+            return new TextBuffer(memoized);
+        }
+
+        final TextBuffer formatted = format(formatter, path, body, previous);
+        if (!formatted.hasFailed()) memo.put(language, digest, formatted.toString());
+        return formatted;
+    }
+
+    private static <T> T await(final Future<T> pending) {
+        try {
+            return pending.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof Error) throw (Error) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private static FormatCache loadCache(final File directory, final Logger output) {
+        if (directory == null) return null;
+
+        final FormatCache cache = new FormatCache(output, directory);
+        try {
+            return cache.load();
+        } catch (final IOException e) {
+            output.error("Could not load format cache {}, starting anew: {}", directory, e);
+            return new FormatCache(output, directory);
+        }
+    }
+
+    public String getConfigurationFingerprint() throws IOException {
+        return formatterFactory.getConfigurationFingerprint();
+    }
+
+    public void run(final Arguments arguments) {
+        run(arguments, logger.getTarget());
+    }
+
+    private static class Stages {
+        public final Stage read;
+        public final Stage format;
+        public final Stage write;
+
+        public Stages(final int ioThreads, final int threads) {
+            this.read = new Stage("read", ioThreads, ioThreads * 4);
+            this.format = new Stage("format", threads, threads * 4);
+            this.write = new Stage("write", ioThreads, ioThreads * 4);
+        }
+
+        public void shutdown() {
+            read.shutdown();
+            format.shutdown();
+            write.shutdown();
+        }
+
+        public void report(final Logger logger) {
+            read.report(logger);
+            format.report(logger);
+            write.report(logger);
+        }
+    }
+
+    /**
+     * Replays the files which are done, waiting for the oldest one if too many are
+     * in flight, so that a single slow file cannot make the backlog grow unbounded.
+     */
+    private static void drain(final ArrayDeque<FileJob> pending, final int window, final Logger output) {
+        while (!pending.isEmpty() && (pending.size() > window || pending.peek().isDone())) {
+            pending.poll().complete(output);
+        }
+    }
+
+    /** Starts initializing the language of a file in the background when it is seen for the first time. */
+    private void prefetch(final File file) {
+        final Matcher extensionMatcher = EXTENSION_PATTERN.matcher(file.getName());
+        if (extensionMatcher.find()) {
+            formatterFactory.prefetch(extensionMatcher.group(1));
+        }
+    }
+
+    /** Formats the requested paths, sending all log messages of this run to the provided logger. */
+    public void run(final Arguments arguments, final Logger output) {
+        final FormatCache cache = loadCache(arguments.cache, output);
+        final CodeIO.WriteMode writeMode = arguments.atomicWrites ? CodeIO.WriteMode.ATOMIC : CodeIO.WriteMode.IN_PLACE;
+
+        final Stages stages = new Stages(arguments.ioThreads, arguments.threads);
+        if (arguments.stats) formatterFactory.getProfiler().start();
+        final long memoHits = memo != null ? memo.getHits() : 0L;
+        final long memoMisses = memo != null ? memo.getMisses() : 0L;
+        final ExecutorService scanner = Executors.newFixedThreadPool(arguments.ioThreads);
+        try {
+            final ArrayDeque<FileJob> pending = new ArrayDeque<FileJob>();
+            final int window = (arguments.ioThreads * 2 + arguments.threads) * 8;
+
+            for (final File path : arguments.paths) {
+                if (path.isFile()) prefetch(path);
+            }
+
+            for (final File path : arguments.paths) {
+                if (path.isDirectory()) {
+                    for (final File current : new FileIterator(path, SOURCE_PATTERN, arguments.excludes, scanner)) {
+                        prefetch(current);
+                        final FileJob job = new FileJob(current, cache, writeMode, arguments.incremental, stages);
+                        pending.add(job);
+                        job.start();
+                        drain(pending, window, output);
+                    }
+                } else if (path.isFile()) {
+                    final FileJob job = new FileJob(path, cache, writeMode, arguments.incremental, stages);
+                    pending.add(job);
+                    job.start();
+                    drain(pending, window, output);
+                }
+            }
+
+            while (!pending.isEmpty()) {
+                pending.poll().complete(output);
+            }
+
+            if (arguments.stats) {
+                stages.report(output);
+                if (memo != null) memo.report(output, memoHits, memoMisses);
+                formatterFactory.getProfiler().report(output);
+            }
+        } finally {
+            stages.shutdown();
+            scanner.shutdownNow();
+            if (arguments.stats) formatterFactory.getProfiler().stop();
+        }
+
+        if (cache != null) {
+            try {
+                cache.save();
+            } catch (final IOException e) {
+                output.error("Could not save format cache {}: {}", arguments.cache, e);
             }
         }
     }
 
-    public static void main(final String[] args) {
-        final Pattern sourcePattern = Pattern.compile(".*\\.(cs|java|php|scala|sql)");
-        final Main main = new Main(new LoggerImpl());
+    private String formatSource(
+            final String language,
+            final String path,
+            final String body,
+            final byte[] bytes,
+            final String previous) {
+        final Formatter formatter = formatterFactory.getFormatter(language);
+        try {
+            final byte[] digest = memo != null ? codeIO.digest(bytes) : null;
+            return formatOrReuse(formatter, language.toLowerCase(Locale.ENGLISH), path, body, digest, previous).toString();
+        } catch (final Exception e) {
+            logger.error("Caught exception when formatting {}: {}", path, e);
+            return body;
+        }
+    }
+
+    /** Formats a single source read from the input, writing the result to the output. */
+    public void runStream(final String language, final InputStream in, final OutputStream out) throws IOException {
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[8192];
+        while (true) {
+            final int read = in.read(buffer);
+            if (read == -1) break;
+            body.write(buffer, 0, read);
+        }
+
+        final String context = "<stdin>." + language;
+        final byte[] bytes = body.toByteArray();
+        final String formatted = formatSource(language, context, codeIO.decode(context, bytes), bytes, null);
+        out.write(codeIO.encode(context, formatted));
+        out.flush();
+    }
+
+    private static class Record {
+        public final String language;
+        public final String path;
+        public final byte[] body;
+        public final BufferedLogger.Buffer buffer;
+
+        public Record(final String language, final String path, final byte[] body, final BufferedLogger.Buffer buffer) {
+            this.language = language;
+            this.path = path;
+            this.body = body;
+            this.buffer = buffer;
+        }
+    }
+
+    private Future<Record> submit(
+            final ExecutorService executor,
+            final String language,
+            final String path,
+            final byte[] body,
+            final FormatCache cache) {
+        return executor.submit(new Callable<Record>() {
+            @Override
+            public Record call() {
+                final BufferedLogger.Buffer buffer = new BufferedLogger.Buffer();
+                logger.attach(buffer);
+                try {
+                    final String source = codeIO.decode(path, body);
+                    final String previous = cache != null
+                            ? cache.readBody(path, formatterFactory.getFingerprint(language))
+                            : null;
+                    final String formatted = formatSource(language, path, source, body, previous);
+                    return new Record(language, path, formatted == source ? body : codeIO.encode(path, formatted), buffer);
+                } catch (final IOException e) {
+                    logger.error("Caught exception when formatting {}: {}", path, e);
+                    return new Record(language, path, body, buffer);
+                } finally {
+                    logger.detach();
+                }
+            }
+        });
+    }
+
+    /**
+     * Formats a stream of length-prefixed (language, path, body) records, writing the formatted
+     * records in the same order. Records are formatted in parallel, and each one is written as soon
+     * as it and all the preceding ones are done, so the protocol can also be used interactively.
+     * Given a cache, a record is compared with the output the cache keeps for its path (as
+     * written by a file run with the same configuration), and is formatted fully otherwise.
+     */
+    public void runBatch(
+            final InputStream in,
+            final OutputStream out,
+            final int threads,
+            final FormatCache cache) throws IOException {
+        final DataInputStream dis = new DataInputStream(new BufferedInputStream(in));
+        final DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(out));
 
-        for (final String arg : args) {
-            final File file = new File(arg);
-            if (file.isDirectory()) {
-                for (final File current : new FileIterator(file, sourcePattern)) {
-                    main.format(current);
+        final BlockingQueue<Future<Record>> pending = new ArrayBlockingQueue<Future<Record>>(threads * 4);
+        final Future<Record> end = new FutureTask<Record>(new Callable<Record>() {
+            @Override
+            public Record call() {
+                return null;
+            }
+        });
+
+        final ExecutorService executor = Executors.newFixedThreadPool(threads);
+        final ExecutorService writer = Executors.newSingleThreadExecutor();
+        try {
+            final Future<?> written = writer.submit(new Callable<Void>() {
+                @Override
+                public Void call() throws IOException, InterruptedException {
+                    while (true) {
+                        final Future<Record> next = pending.take();
+                        if (next == end) return null;
+
+                        final Record record = await(next);
+                        record.buffer.replay(logger.getTarget());
+                        Frames.writeString(dos, record.language);
+                        Frames.writeString(dos, record.path);
+                        Frames.writeBytes(dos, record.body);
+                        dos.flush();
+                    }
                 }
-            } else if (file.isFile()) {
-                main.format(file);
+            });
+
+            while (true) {
+                final String language = Frames.readRecordStart(dis);
+                if (language != null) formatterFactory.prefetch(language);
+                final Future<Record> next = language == null
+                        ? end
+                        : submit(executor, language, Frames.readString(dis), Frames.readBytes(dis), cache);
+
+                while (!pending.offer(next, 100, TimeUnit.MILLISECONDS)) {
+                    if (written.isDone()) await(written);
+                }
+                if (next == end) break;
+            }
+
+            await(written);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } finally {
+            executor.shutdownNow();
+            writer.shutdownNow();
+        }
+    }
+
+    public static void main(final String[] args) throws IOException {
+        final Arguments arguments;
+        try {
+            arguments = Arguments.parse(args);
+        } catch (final IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println();
+            System.err.print(Arguments.USAGE);
+            System.exit(2);
+            return;
+        }
+        final boolean streaming = arguments.lang != null || arguments.batch;
+        final Logger logger = streaming ? new LoggerImpl(System.err) : new LoggerImpl();
+
+        if (arguments.buildStartupArchive) {
+            System.exit(new StartupArchive(logger).build());
+        }
+        if (arguments.useStartupArchive && arguments.connect == 0) {
+            final Integer status = new StartupArchive(logger).relaunch(args);
+            if (status != null) {
+                System.exit(status);
             }
         }
+
+        if (arguments.daemon > 0) {
+            new Daemon(logger, arguments).serve();
+            return;
+        }
+
+        final Main main = new Main(logger, arguments);
+        if (arguments.batch) {
+            main.runBatch(System.in, System.out, arguments.threads,
+                    arguments.incremental ? loadCache(arguments.cache, logger) : null);
+            return;
+        }
+        if (arguments.lang != null) {
+            main.runStream(arguments.lang, System.in, System.out);
+            return;
+        }
+
+        if (arguments.connect > 0) {
+            final Integer status = new DaemonClient(logger, arguments.connect)
+                    .run(main.getConfigurationFingerprint(), arguments.forwarded);
+            if (status != null) {
+                System.exit(status);
+            }
+            logger.debug("Formatting without the daemon ...");
+        }
+
+        main.run(arguments);
     }
 }
@@ -0,0 +1,148 @@
+package com.dslplatform.compiler.client.formatter;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Single archive holding the entries of a verified dependency set, named after the combined
+ * SHA-1 of its artifacts in class path order. When several jars contain the same entry the
+ * first one wins, just like with a class path; service registrations are concatenated, and
+ * signatures are dropped as they would no longer match the merged archive.
+ *
+ * <p>The SHA-1 of a built archive is recorded in the {@link ArtifactManifest}, and an existing
+ * archive is only reused while it matches that record; otherwise it is built again.
+ */
+class MergedArchive {
+    private MergedArchive() {}
+
+    private static final String SERVICES = "META-INF/services/";
+
+    private static boolean isSignature(final String name) {
+        if (!name.startsWith("META-INF/") || name.indexOf('/', 9) != -1) return false;
+        final String upper = name.toUpperCase(Locale.ENGLISH);
+        return upper.endsWith(".SF") || upper.endsWith(".RSA") || upper.endsWith(".DSA") || upper.endsWith(".EC");
+    }
+
+    public static File getFile(final File cacheDir, final List<String> hashes) {
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        for (final String hash : hashes) {
+            md.update(DatatypeConverter.parseHexBinary(hash));
+        }
+        return new File(cacheDir, "merged-" + DatatypeConverter.printHexBinary(md.digest()).toLowerCase(Locale.ENGLISH) + ".jar");
+    }
+
+    private static void copy(final InputStream is, final OutputStream os, final byte[] buffer) throws IOException {
+        while (true) {
+            final int read = is.read(buffer);
+            if (read == -1) return;
+            os.write(buffer, 0, read);
+        }
+    }
+
+    /** Merges the jars into the target archive, unless it was already merged and is unchanged. */
+    public static File merge(
+            final Logger logger,
+            final ArtifactManifest manifest,
+            final File target,
+            final List<File> jars) throws IOException {
+        if (target.isFile()) {
+            final String recorded = manifest.getRecordedSha1(target);
+            if (recorded != null && manifest.isVerified(target, recorded)) return target;
+            logger.debug("Merged archive {} does not match the manifest, merging again", target);
+        }
+
+        logger.debug("Merging {} artifacts into {}", jars.size(), target);
+        final MessageDigest md;
+        try {
+            md = MessageDigest.getInstance("SHA-1");
+        } catch (final NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+
+        final File temp = File.createTempFile("merged", ".tmp", target.getParentFile());
+        try {
+            final Set<String> written = new HashSet<String>();
+            final Map<String, ByteArrayOutputStream> services = new LinkedHashMap<String, ByteArrayOutputStream>();
+            final byte[] buffer = new byte[65536];
+
+            final ZipOutputStream zos = new ZipOutputStream(new BufferedOutputStream(
+                    new DigestOutputStream(new FileOutputStream(temp), md)));
+            try {
+                for (final File jar : jars) {
+                    final ZipFile zip = new ZipFile(jar);
+                    try {
+                        final Enumeration<? extends ZipEntry> entries = zip.entries();
+                        while (entries.hasMoreElements()) {
+                            final ZipEntry entry = entries.nextElement();
+                            final String name = entry.getName();
+                            if (isSignature(name)) continue;
+
+                            if (name.startsWith(SERVICES) && !entry.isDirectory()) {
+                                ByteArrayOutputStream service = services.get(name);
+                                if (service == null) {
+                                    service = new ByteArrayOutputStream();
+                                    services.put(name, service);
+                                }
+                                final InputStream is = zip.getInputStream(entry);
+                                try {
+                                    copy(is, service, buffer);
+                                } finally {
+                                    is.close();
+                                }
+                                service.write('\n');
+                                continue;
+                            }
+
+                            if (!written.add(name)) continue;
+
+                            zos.putNextEntry(new ZipEntry(name));
+                            if (!entry.isDirectory()) {
+                                final InputStream is = zip.getInputStream(entry);
+                                try {
+                                    copy(is, zos, buffer);
+                                } finally {
+                                    is.close();
+                                }
+                            }
+                            zos.closeEntry();
+                        }
+                    } finally {
+                        zip.close();
+                    }
+                }
+
+                for (final Map.Entry<String, ByteArrayOutputStream> service : services.entrySet()) {
+                    zos.putNextEntry(new ZipEntry(service.getKey()));
+                    service.getValue().writeTo(zos);
+                    zos.closeEntry();
+                }
+            } finally {
+                zos.close();
+            }
+
+            if (!temp.renameTo(target)) {
+                target.delete();
+                if (!temp.renameTo(target)) {
+                    throw new IOException("Could not move merged archive to " + target);
+                }
+            }
+            manifest.verified(target, DatatypeConverter.printHexBinary(md.digest()).toLowerCase(Locale.ENGLISH));
+            return target;
+        } finally {
+            temp.delete();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URLConnection;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Picks the repository an artifact is downloaded from. The mirrors are probed concurrently
+ * and the first one serving the artifact with the expected length is tried first, followed
+ * by the others in case it fails the transfer or the verification.
+ *
+ * <p>Probe latencies are remembered between runs: the fastest known mirror is probed first,
+ * and the other known mirrors only if it does not answer within twice its usual time.
+ * Mirrors without a recorded latency are always probed right away.
+ */
+class MirrorResolver {
+    /** Location of an artifact within one of the repositories. */
+    public static class Mirror {
+        public final Repository repository;
+        public final URI uri;
+
+        public Mirror(final Repository repository, final URI uri) {
+            this.repository = repository;
+            this.uri = uri;
+        }
+    }
+
+    /** Probe timeout, also recorded as the latency of a mirror which failed. */
+    private static final int PROBE_TIMEOUT = 10000;
+    private static final long MIN_STAGGER = 50L;
+
+    private static final ExecutorService probes = Executors.newCachedThreadPool(new ThreadFactory() {
+        @Override
+        public Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "mirror-probe");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final Logger logger;
+    private final File latencyFile;
+    private final ConcurrentMap<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+
+    public MirrorResolver(final Logger logger, final File directory) {
+        this.logger = logger;
+        this.latencyFile = new File(directory, "mirrors.properties");
+        load();
+    }
+
+    private void load() {
+        if (!latencyFile.isFile()) return;
+
+        try {
+            final Properties properties = new Properties();
+            final InputStream is = new FileInputStream(latencyFile);
+            try {
+                properties.load(is);
+            } finally {
+                is.close();
+            }
+            for (final String name : properties.stringPropertyNames()) {
+                latencies.put(name, Long.valueOf(properties.getProperty(name)));
+            }
+        } catch (final Exception e) {
+            logger.debug("Could not read mirror latencies {}: {}", latencyFile, e);
+            latencies.clear();
+        }
+    }
+
+    private synchronized void save() throws IOException {
+        final Properties properties = new Properties();
+        for (final Map.Entry<String, Long> entry : latencies.entrySet()) {
+            properties.setProperty(entry.getKey(), entry.getValue().toString());
+        }
+
+        final File parent = latencyFile.getParentFile();
+        if (!parent.isDirectory()) parent.mkdirs();
+        final File temp = File.createTempFile("mirrors", ".tmp", parent);
+        final OutputStream os = new FileOutputStream(temp);
+        try {
+            properties.store(os, "Mirror latencies in milliseconds");
+        } finally {
+            os.close();
+        }
+
+        if (!temp.renameTo(latencyFile)) {
+            latencyFile.delete();
+            if (!temp.renameTo(latencyFile)) {
+                temp.delete();
+                throw new IOException("Could not replace mirror latencies: " + latencyFile);
+            }
+        }
+    }
+
+    private Long getLatency(final Mirror mirror) {
+        return latencies.get(mirror.repository.uri.toString());
+    }
+
+    private void record(final Mirror mirror, final long millis) {
+        final String key = mirror.repository.uri.toString();
+        final Long previous = latencies.get(key);
+        latencies.put(key, previous == null ? millis : (previous + millis) / 2);
+        try {
+            save();
+        } catch (final IOException e) {
+            logger.debug("Could not save mirror latencies {}: {}", latencyFile, e);
+        }
+    }
+
+    /** Records a mirror which failed to deliver a valid artifact, so that it is ranked last. */
+    public void failed(final Mirror mirror) {
+        record(mirror, PROBE_TIMEOUT);
+    }
+
+    /** Known mirrors ordered by their latency, followed by the unknown ones in declared order. */
+    private List<Mirror> sort(final List<Mirror> mirrors) {
+        // snapshot, as concurrent probes keep updating the latencies
+        final Map<Mirror, Long> known = new HashMap<Mirror, Long>();
+        for (final Mirror mirror : mirrors) {
+            final Long latency = getLatency(mirror);
+            if (latency != null) known.put(mirror, latency);
+        }
+
+        final List<Mirror> sorted = new ArrayList<Mirror>(mirrors);
+        Collections.sort(sorted, new Comparator<Mirror>() {
+            @Override
+            public int compare(final Mirror left, final Mirror right) {
+                final Long leftLatency = known.get(left);
+                final Long rightLatency = known.get(right);
+                if (leftLatency == null) return rightLatency == null ? 0 : 1;
+                if (rightLatency == null) return -1;
+                return leftLatency.compareTo(rightLatency);
+            }
+        });
+        return sorted;
+    }
+
+    private Callable<Mirror> probe(final Mirror mirror, final int length) {
+        return new Callable<Mirror>() {
+            @Override
+            public Mirror call() throws IOException {
+                final long startAt = System.nanoTime();
+                try {
+                    final long found;
+                    if ("file".equals(mirror.uri.getScheme())) {
+                        final File file = new File(mirror.uri);
+                        found = file.isFile() ? file.length() : -2L;
+                    } else {
+                        final URLConnection connection = mirror.uri.toURL().openConnection();
+                        connection.setConnectTimeout(PROBE_TIMEOUT);
+                        connection.setReadTimeout(PROBE_TIMEOUT);
+                        if (connection instanceof HttpURLConnection) {
+                            final HttpURLConnection http = (HttpURLConnection) connection;
+                            http.setRequestMethod("HEAD");
+                            found = http.getResponseCode() == HttpURLConnection.HTTP_OK ? http.getContentLength() : -2L;
+                            http.disconnect();
+                        } else {
+                            connection.getInputStream().close();
+                            found = connection.getContentLength();
+                        }
+                    }
+
+                    if (found != -1L && found != length) {
+                        throw new IOException(found == -2L ? "Artifact not found" : "Unexpected length " + found);
+                    }
+                } catch (final IOException e) {
+                    logger.debug("Mirror {} failed the probe of {}: {}", mirror.repository.name, mirror.uri, e);
+                    failed(mirror);
+                    throw e;
+                }
+
+                final long millis = (System.nanoTime() - startAt) / 1000000L;
+                logger.debug("Mirror {} answered in {} ms", mirror.repository.name, millis);
+                record(mirror, millis);
+                return mirror;
+            }
+        };
+    }
+
+    /**
+     * Orders the mirrors by the order they should be downloaded from, the first one being
+     * the one which answered the probe first. A single mirror is returned without probing.
+     */
+    public List<Mirror> rank(final List<Mirror> mirrors, final int length) {
+        if (mirrors.size() < 2) return mirrors;
+
+        final List<Mirror> sorted = sort(mirrors);
+        final Long bestLatency = getLatency(sorted.get(0));
+        final long stagger = bestLatency == null ? 0L : Math.max(MIN_STAGGER, 2 * bestLatency);
+
+        final CompletionService<Mirror> completion = new ExecutorCompletionService<Mirror>(probes);
+        final LinkedList<Mirror> waiting = new LinkedList<Mirror>();
+        int pending = 0;
+        for (final Mirror mirror : sorted) {
+            if (pending == 0 || getLatency(mirror) == null) {
+                completion.submit(probe(mirror, length));
+                pending++;
+            } else {
+                waiting.add(mirror);
+            }
+        }
+
+        Mirror winner = null;
+        try {
+            while (winner == null && (pending > 0 || !waiting.isEmpty())) {
+                final Future<Mirror> done = pending == 0
+                        ? null
+                        : completion.poll(waiting.isEmpty() ? PROBE_TIMEOUT : stagger, TimeUnit.MILLISECONDS);
+                if (done == null) {
+                    if (waiting.isEmpty()) break;
+                    completion.submit(probe(waiting.removeFirst(), length));
+                    pending++;
+                    continue;
+                }
+
+                pending--;
+                try {
+                    winner = done.get();
+                } catch (final ExecutionException e) {
+                    // logged by the probe, try the next one
+                }
+            }
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // slower probes are left to finish, so that their latency is still recorded
+
+        if (winner == null) return sorted;
+
+        final List<Mirror> ranked = new ArrayList<Mirror>(sorted.size());
+        ranked.add(winner);
+        for (final Mirror mirror : sorted) {
+            if (mirror != winner) ranked.add(mirror);
+        }
+        return ranked;
+    }
+}
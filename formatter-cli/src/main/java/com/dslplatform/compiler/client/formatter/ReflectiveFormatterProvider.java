@@ -0,0 +1,69 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.lang.reflect.Constructor;
+import java.util.Properties;
+
+/**
+ * Provider for language modules which predate {@link FormatterProvider}: the formatter class
+ * is instantiated through its public constructor, which takes the logger, optionally the
+ * properties, and the provided string arguments in order.
+ */
+class ReflectiveFormatterProvider implements FormatterProvider {
+    private final String extension;
+    private final boolean threadSafe;
+    private final Class<?> formatterClass;
+    private final String[] arguments;
+
+    public ReflectiveFormatterProvider(
+            final String extension,
+            final boolean threadSafe,
+            final Class<?> formatterClass,
+            final String... arguments) {
+        this.extension = extension;
+        this.threadSafe = threadSafe;
+        this.formatterClass = formatterClass;
+        this.arguments = arguments;
+    }
+
+    @Override
+    public String[] getExtensions() {
+        return new String[] { extension };
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return threadSafe;
+    }
+
+    private Object[] bind(final Class<?>[] types, final Logger logger, final Properties properties) {
+        final Object[] values = new Object[types.length];
+        int argument = 0;
+        for (int i = 0; i < types.length; i++) {
+            if (types[i] == Logger.class) {
+                values[i] = logger;
+            } else if (types[i] == Properties.class) {
+                values[i] = properties;
+            } else if (types[i] == String.class && argument < arguments.length) {
+                values[i] = arguments[argument++];
+            } else {
+                return null;
+            }
+        }
+        return argument == arguments.length ? values : null;
+    }
+
+    @Override
+    public Formatter createFormatter(final Logger logger, final Properties properties) {
+        for (final Constructor<?> constructor : formatterClass.getConstructors()) {
+            final Object[] values = bind(constructor.getParameterTypes(), logger, properties);
+            if (values == null) continue;
+
+            try {
+                return (Formatter) constructor.newInstance(values);
+            } catch (final Exception e) {
+                throw new RuntimeException("Could not instantiate " + formatterClass.getName(), e);
+            }
+        }
+        throw new IllegalArgumentException("No suitable constructor found in " + formatterClass.getName());
+    }
+}
@@ -0,0 +1,78 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One stage of the formatting pipeline: a fixed thread pool fed by a bounded queue.
+ * Submitting to a full queue blocks the caller, which propagates backpressure to the
+ * previous stage. Queue depth and busy time are tracked so the pool sizes can be tuned.
+ */
+class Stage {
+    private final String name;
+    private final int threads;
+    private final ThreadPoolExecutor executor;
+
+    private final AtomicLong tasks = new AtomicLong();
+    private final AtomicLong busyNanos = new AtomicLong();
+    private final AtomicLong queueDepthSum = new AtomicLong();
+    private final AtomicLong queueDepthMax = new AtomicLong();
+    private final long startedAt = System.nanoTime();
+
+    public Stage(final String name, final int threads, final int capacity) {
+        this.name = name;
+        this.threads = threads;
+        this.executor = new ThreadPoolExecutor(
+                threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(capacity),
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(final Runnable task, final ThreadPoolExecutor executor) {
+                        try {
+                            executor.getQueue().put(task);
+                        } catch (final InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                            throw new RejectedExecutionException(e);
+                        }
+                    }
+                });
+    }
+
+    public void submit(final Runnable task) {
+        final long depth = executor.getQueue().size();
+        queueDepthSum.addAndGet(depth);
+        while (true) {
+            final long max = queueDepthMax.get();
+            if (depth <= max || queueDepthMax.compareAndSet(max, depth)) break;
+        }
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final long start = System.nanoTime();
+                try {
+                    task.run();
+                } finally {
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    tasks.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public void report(final Logger logger) {
+        final long count = tasks.get();
+        final long elapsed = Math.max(1L, System.nanoTime() - startedAt);
+        logger.info("Stage {}: {} tasks on {} threads, {} utilisation, queue depth {} average / {} max",
+                name,
+                count,
+                threads,
+                busyNanos.get() * 100 / (elapsed * threads) + "%",
+                count == 0 ? 0 : queueDepthSum.get() / count,
+                queueDepthMax.get());
+    }
+}
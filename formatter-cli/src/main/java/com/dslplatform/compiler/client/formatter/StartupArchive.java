@@ -0,0 +1,316 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Array;
+import java.security.Principal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Class data sharing archive of the formatter and the downloaded language modules, which lets
+ * a cold start skip loading and verifying classes (most of all those of the Eclipse JDT).
+ *
+ * <p>The archive is dumped by a child JVM which formats a small corpus in every language,
+ * and an argument file is written alongside it, so that launchers can start the JVM with the
+ * archive right away. As relaunching costs a second JVM start, runs only relaunch themselves
+ * with the archive when asked to, and as long as its stamp matches: the stamp records the JVM,
+ * the class path and the SHA-1 of every artifact, so the archive is ignored once any of them
+ * changes. Since the archive is kept in the shared temporary directory, it is also ignored
+ * unless it belongs to the current user. Dynamic archives require Java 13, older JVMs run
+ * without one.
+ */
+class StartupArchive {
+    /** Set on the child JVMs, so that they never relaunch themselves. */
+    private static final String CHILD_PROPERTY = "dsl-clc-formatter.startup-archive";
+    private static final String HEADER = "dsl-clc-formatter-startup-archive 1";
+
+    private static final String[][] CORPUS = {
+            { "Sample.cs", "using System;\r\n\r\n\r\nnamespace Warmup\r\n{\r\n\tpublic class Sample  \r\n\t{\r\n\t\tpublic int Value { get; set; }\r\n\t}\r\n}\r\n" },
+            { "Sample.java", "package warmup;\n\nimport java.util.List;\n\npublic class Sample {\n    private final List<String> names;\n\n\n    public Sample(final List<String> names) { this.names = names; }\n    public int size() { return names.size(); }\n}\n" },
+            { "Sample.php", "<?php\nnamespace Warmup;\n\n\nclass Sample\n{\n    public $value;  \n}\n" },
+            { "Sample.scala", "package warmup\n\nclass Sample(val names: Seq[String]) {\n  def size: Int = names.size\n}\n" },
+            { "Sample.sql", "CREATE TABLE sample (\n\tid INT PRIMARY KEY,  \n\tname VARCHAR(40)\n);\n\n\n" } };
+
+    private final Logger logger;
+    private final FormatterFactory formatterFactory;
+    private final File archive;
+    private final File stamp;
+    private final File argumentFile;
+
+    public StartupArchive(final Logger logger) {
+        this.logger = logger;
+        this.formatterFactory = new FormatterFactory(new BufferedLogger(logger), false, false);
+        this.archive = new File(ArtifactDownload.TEMP_DIR, "startup.jsa");
+        this.stamp = new File(ArtifactDownload.TEMP_DIR, "startup.stamp");
+        this.argumentFile = new File(ArtifactDownload.TEMP_DIR, "startup.args");
+    }
+
+    private static boolean isSupported() {
+        final String version = System.getProperty("java.specification.version", "1.6");
+        if (version.startsWith("1.")) return false;
+
+        final int dot = version.indexOf('.');
+        try {
+            return Integer.parseInt(dot == -1 ? version : version.substring(0, dot)) >= 13;
+        } catch (final NumberFormatException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Checks that the file (and not a link to it) belongs to the user running this JVM.
+     * The owner is looked up through {@code java.nio.file}, which any JVM supporting
+     * archives has.
+     */
+    private static boolean isOwnedByUser(final File file) {
+        try {
+            final Class<?> pathClass = Class.forName("java.nio.file.Path");
+            final Class<?> linkOptionClass = Class.forName("java.nio.file.LinkOption");
+            final Object options = Array.newInstance(linkOptionClass, 1);
+            Array.set(options, 0, linkOptionClass.getField("NOFOLLOW_LINKS").get(null));
+
+            final Object path = File.class.getMethod("toPath").invoke(file);
+            final Principal owner = (Principal) Class.forName("java.nio.file.Files")
+                    .getMethod("getOwner", pathClass, options.getClass())
+                    .invoke(null, path, options);
+
+            final String user = System.getProperty("user.name");
+            return owner.getName().equals(user) || owner.getName().endsWith("\\" + user);
+        } catch (final Exception e) {
+            return false;
+        }
+    }
+
+    private String computeStamp() throws IOException {
+        final StringBuilder sb = new StringBuilder(HEADER).append('\n');
+        sb.append("vm ").append(System.getProperty("java.home"))
+                .append(' ').append(System.getProperty("java.vm.version")).append('\n');
+
+        final String classPath = System.getProperty("java.class.path");
+        for (final String entry : classPath.split(Pattern.quote(File.pathSeparator))) {
+            final File file = new File(entry).getAbsoluteFile();
+            sb.append("classpath ").append(file)
+                    .append(' ').append(file.length())
+                    .append(' ').append(file.lastModified()).append('\n');
+        }
+
+        for (final String hash : formatterFactory.getArtifactHashes()) {
+            sb.append("artifact ").append(hash).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private String readStamp() throws IOException {
+        final Reader reader = new InputStreamReader(new FileInputStream(stamp), "UTF-8");
+        try {
+            final StringBuilder sb = new StringBuilder();
+            final char[] buffer = new char[4096];
+            while (true) {
+                final int read = reader.read(buffer);
+                if (read == -1) return sb.toString();
+                sb.append(buffer, 0, read);
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static void write(final File file, final String value) throws IOException {
+        final Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+        try {
+            writer.write(value);
+        } finally {
+            writer.close();
+        }
+    }
+
+    /** Quotes an option for a java launcher argument file. */
+    private static String quote(final String option) {
+        return '"' + option.replace("\\", "\\\\").replace("\"", "\\\"") + '"';
+    }
+
+    /** Command line of a child JVM with the same class path and options as this one. */
+    private static List<String> javaCommand(final String... options) {
+        final List<String> command = new ArrayList<String>();
+        command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+        for (final String argument : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+            if (argument.startsWith("-XX:SharedArchiveFile=")
+                    || argument.startsWith("-XX:ArchiveClassesAtExit=")
+                    || argument.startsWith("-D" + CHILD_PROPERTY + "=")) continue;
+            command.add(argument);
+        }
+        for (final String option : options) {
+            command.add(option);
+        }
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(Main.class.getName());
+        return command;
+    }
+
+    private static class Pump extends Thread {
+        private final InputStream in;
+        private final OutputStream out;
+        private final boolean close;
+
+        public Pump(final InputStream in, final OutputStream out, final boolean close) {
+            this.in = in;
+            this.out = out;
+            this.close = close;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            final byte[] buffer = new byte[8192];
+            try {
+                while (true) {
+                    final int read = in.read(buffer);
+                    if (read == -1) break;
+                    out.write(buffer, 0, read);
+                    out.flush();
+                }
+                if (close) out.close();
+            } catch (final IOException e) {
+                // the other side is gone
+            }
+        }
+    }
+
+    /** Runs a child JVM connected to the standard streams of this one, returning its exit status. */
+    private static int execute(final List<String> command, final boolean forwardInput) throws IOException {
+        final Process process = new ProcessBuilder(command).start();
+        final Pump stdout = new Pump(process.getInputStream(), System.out, false);
+        final Pump stderr = new Pump(process.getErrorStream(), System.err, false);
+        stdout.start();
+        stderr.start();
+        if (forwardInput) {
+            new Pump(System.in, process.getOutputStream(), true).start();
+        } else {
+            process.getOutputStream().close();
+        }
+
+        try {
+            final int status = process.waitFor();
+            stdout.join();
+            stderr.join();
+            return status;
+        } catch (final InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Runs the command line in a child JVM using the archive, if there is an up-to-date one.
+     *
+     * @return the exit status of the child, or {@code null} if this JVM should do the work itself
+     */
+    public Integer relaunch(final String[] args) {
+        if (System.getProperty(CHILD_PROPERTY) != null || !isSupported() || !archive.isFile() || !stamp.isFile()) {
+            return null;
+        }
+
+        try {
+            if (!isOwnedByUser(archive) || !isOwnedByUser(stamp)) {
+                logger.debug("Ignoring start-up archive which does not belong to the current user: {}", archive);
+                return null;
+            }
+            if (!computeStamp().equals(readStamp())) {
+                logger.debug("Start-up archive is out of date: {}", archive);
+                return null;
+            }
+
+            final List<String> command = javaCommand(
+                    "-XX:SharedArchiveFile=" + archive.getPath(),
+                    "-D" + CHILD_PROPERTY + "=" + archive.getPath());
+            for (final String arg : args) {
+                command.add(arg);
+            }
+            return execute(command, true);
+        } catch (final IOException e) {
+            logger.debug("Could not use start-up archive {}: {}", archive, e);
+            return null;
+        }
+    }
+
+    private File createCorpus() throws IOException {
+        final File corpus = File.createTempFile("dsl-clc-formatter-warmup", "");
+        if (!corpus.delete() || !corpus.mkdir()) {
+            throw new IOException("Could not create warm-up directory: " + corpus);
+        }
+
+        for (final String[] sample : CORPUS) {
+            final OutputStream os = new FileOutputStream(new File(corpus, sample[0]));
+            try {
+                os.write(sample[1].getBytes("UTF-8"));
+            } finally {
+                os.close();
+            }
+        }
+        return corpus;
+    }
+
+    private static void deleteCorpus(final File corpus) {
+        final File[] files = corpus.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        corpus.delete();
+    }
+
+    /** Dumps the archive from a child JVM formatting the warm-up corpus, returning the exit status. */
+    public int build() throws IOException {
+        if (!isSupported()) {
+            logger.error("Start-up archives require Java 13 or newer, but this is Java {}",
+                    System.getProperty("java.specification.version"));
+            return 1;
+        }
+
+        final String expectedStamp = computeStamp();
+        final File temporary = new File(archive.getPath() + ".tmp");
+        final File corpus = createCorpus();
+        try {
+            if (!ArtifactDownload.TEMP_DIR.isDirectory()) {
+                logger.debug("Creating workspace: {}", ArtifactDownload.TEMP_DIR);
+                ArtifactDownload.TEMP_DIR.mkdirs();
+            }
+            temporary.delete();
+
+            logger.info("Building start-up archive: {}", archive);
+            final List<String> command = javaCommand(
+                    "-XX:ArchiveClassesAtExit=" + temporary.getPath(),
+                    "-Xlog:cds=off",
+                    "-D" + CHILD_PROPERTY + "=" + temporary.getPath());
+            command.add(corpus.getPath());
+
+            final int status = execute(command, false);
+            if (status != 0 || !temporary.isFile()) {
+                logger.error("Could not build start-up archive (exit status {})", status);
+                return status != 0 ? status : 1;
+            }
+
+            stamp.delete();
+            argumentFile.delete();
+            archive.delete();
+            if (!temporary.renameTo(archive)) {
+                throw new IOException("Could not move start-up archive to " + archive);
+            }
+            write(stamp, expectedStamp);
+            write(argumentFile, quote("-XX:SharedArchiveFile=" + archive.getPath()) + '\n'
+                    + quote("-D" + CHILD_PROPERTY + "=" + archive.getPath()) + '\n');
+
+            logger.info("Start-up archive written: {} ({} bytes)", archive, archive.length());
+            logger.info("Launchers can use the archive by running: java @{} ...", argumentFile);
+            return 0;
+        } finally {
+            temporary.delete();
+            deleteCorpus(corpus);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+/**
+ * Characters present in a text, along with every pair of adjacent characters, gathered in a
+ * single scan. Only ASCII is tracked exactly; any other character is recorded as a flag.
+ */
+final class Census {
+    private final long[] chars = new long[2];
+    private final long[] pairs = new long[128 * 128 / 64];
+    private boolean other;
+
+    private Census() {}
+
+    static int pair(final char first, final char second) {
+        return first << 7 | second;
+    }
+
+    public static Census of(final CharSequence text) {
+        final Census census = new Census();
+        final long[] chars = census.chars;
+        final long[] pairs = census.pairs;
+        final int length = text.length();
+        int previous = -1;
+        for (int i = 0; i < length; i++) {
+            final char ch = text.charAt(i);
+            if (ch < 128) {
+                chars[ch >>> 6] |= 1L << ch;
+                if (previous != -1) {
+                    final int pair = previous << 7 | ch;
+                    pairs[pair >>> 6] |= 1L << pair;
+                }
+                previous = ch;
+            } else {
+                census.other = true;
+                previous = -1;
+            }
+        }
+        return census;
+    }
+
+    public boolean containsAll(final long[] mask) {
+        return (chars[0] & mask[0]) == mask[0] && (chars[1] & mask[1]) == mask[1];
+    }
+
+    public boolean containsAny(final long[] mask) {
+        return (chars[0] & mask[0]) != 0 || (chars[1] & mask[1]) != 0;
+    }
+
+    public boolean containsOther() {
+        return other;
+    }
+
+    public boolean containsPair(final int pair) {
+        return (pairs[pair >>> 6] & 1L << pair) != 0;
+    }
+}
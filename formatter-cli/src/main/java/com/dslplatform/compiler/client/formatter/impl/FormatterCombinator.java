@@ -1,31 +1,79 @@
 package com.dslplatform.compiler.client.formatter.impl;
 
+import com.dslplatform.compiler.client.formatter.BufferFormatter;
 import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.IncrementalFormatter;
 import com.dslplatform.compiler.client.formatter.Logger;
+import com.dslplatform.compiler.client.formatter.TextBuffer;
 
-public class FormatterCombinator implements Formatter {
+/**
+ * Runs the stages of a language on a single {@link TextBuffer}, so that only the stages which
+ * need a string (the language formatters) cause one to be created. A stage which throws is
+ * skipped, and the buffer is marked as {@linkplain TextBuffer#hasFailed failed}.
+ */
+public class FormatterCombinator implements IncrementalFormatter, BufferFormatter {
     private final Logger logger;
-    private final Formatter[] formatters;
+    private final BufferFormatter[] formatters;
 
-    public FormatterCombinator(final Logger logger, final Formatter... formatters) {
+    public FormatterCombinator(final Logger logger, final BufferFormatter... formatters) {
         this.logger = logger;
         this.formatters = formatters;
     }
 
+    /**
+     * Lets a string formatter run as a stage, by handing it the text of the buffer as a string,
+     * along with the previous output if it is an {@link IncrementalFormatter}.
+     */
+    public static BufferFormatter adapt(final Formatter formatter) {
+        if (formatter instanceof BufferFormatter) return (BufferFormatter) formatter;
+
+        return new BufferFormatter() {
+            @Override
+            public boolean format(final String context, final TextBuffer buffer) {
+                final String body = buffer.toString();
+                final String formatted = formatter instanceof IncrementalFormatter && buffer.getPrevious() != null
+                        ? ((IncrementalFormatter) formatter).format(context, body, buffer.getPrevious())
+                        : formatter.format(context, body);
+                if (formatted.equals(body)) return false;
+
+                buffer.set(formatted);
+                return true;
+            }
+
+            @Override
+            public String toString() {
+                return formatter.toString();
+            }
+        };
+    }
+
     @Override
     public String format(final String context, final String body) {
+        return format(context, body, null);
+    }
+
+    @Override
+    public String format(final String context, final String body, final String previous) {
+        final TextBuffer buffer = new TextBuffer(body, previous);
+        format(context, buffer);
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean format(final String context, final TextBuffer buffer) {
         logger.debug("Applying {} formatters on {} ...", formatters.length, context);
 
-        String work = body;
-        for (final Formatter formatter : formatters) {
+        boolean changed = false;
+        for (final BufferFormatter formatter : formatters) {
             try {
-                work = formatter.format(context, work);
+                if (formatter.format(context, buffer)) changed = true;
             } catch (final Exception e) {
                 logger.error("Caught exception thrown by {}: {}, skipping ...", formatter, e);
+                buffer.fail();
             }
         }
 
         logger.debug("Finished applying formatters on {}", context);
-        return work;
+        return changed;
     }
 }
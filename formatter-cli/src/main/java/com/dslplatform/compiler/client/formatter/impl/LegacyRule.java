@@ -0,0 +1,30 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/** Rule whose replacement is left to {@link Matcher#appendReplacement}, along with its errors. */
+final class LegacyRule implements Rule {
+    private final Pattern pattern;
+    private final String replacement;
+
+    LegacyRule(final Pattern pattern, final String replacement) {
+        this.pattern = pattern;
+        this.replacement = replacement;
+    }
+
+    @Override
+    public int apply(final CharSequence input, final StringBuilder output) {
+        final Matcher m = pattern.matcher(input);
+        if (!m.find()) return 0;
+
+        final StringBuffer sb = new StringBuffer();
+        int matches = 0;
+        do {
+            m.appendReplacement(sb, replacement);
+            matches++;
+        } while (m.find());
+        output.append(m.appendTail(sb));
+        return matches;
+    }
+}
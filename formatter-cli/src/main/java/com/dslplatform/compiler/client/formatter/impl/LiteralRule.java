@@ -0,0 +1,61 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+/**
+ * Kernel replacing every occurrence of a literal with a fixed output, such as
+ * {@code '\r' => ''} or {@code '\t' => '    '}. Fused literals start with distinct characters,
+ * so at most one of them can match at any position.
+ */
+final class LiteralRule implements Rule {
+    private final char[] firstChars;
+    private final String[] literals;
+    private final String[] outputs;
+
+    LiteralRule(final String[] literals, final String[] outputs) {
+        this.literals = literals;
+        this.outputs = outputs;
+        this.firstChars = new char[literals.length];
+        for (int i = 0; i < literals.length; i++) {
+            firstChars[i] = literals[i].charAt(0);
+        }
+    }
+
+    static boolean matchesAt(final CharSequence input, final int offset, final String literal) {
+        final int length = literal.length();
+        if (offset + length > input.length()) return false;
+        for (int i = 0; i < length; i++) {
+            if (input.charAt(offset + i) != literal.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int apply(final CharSequence input, final StringBuilder output) {
+        final int length = input.length();
+        int matches = 0;
+        int last = 0;
+        int cursor = 0;
+        while (cursor < length) {
+            final char ch = input.charAt(cursor);
+            int found = -1;
+            for (int i = 0; i < firstChars.length; i++) {
+                if (firstChars[i] == ch && matchesAt(input, cursor, literals[i])) {
+                    found = i;
+                    break;
+                }
+            }
+            if (found == -1) {
+                cursor++;
+                continue;
+            }
+
+            output.append(input, last, cursor).append(outputs[found]);
+            cursor += literals[found].length();
+            last = cursor;
+            matches++;
+        }
+
+        if (matches == 0) return 0;
+        output.append(input, last, length);
+        return matches;
+    }
+}
@@ -1,9 +1,11 @@
 package com.dslplatform.compiler.client.formatter.impl;
 
+import com.dslplatform.compiler.client.formatter.BufferFormatter;
 import com.dslplatform.compiler.client.formatter.Formatter;
 import com.dslplatform.compiler.client.formatter.Logger;
+import com.dslplatform.compiler.client.formatter.TextBuffer;
 
-public class NewlineTrimFormatter implements Formatter {
+public class NewlineTrimFormatter implements Formatter, BufferFormatter {
     private final Logger logger;
     private final String newline;
 
@@ -14,32 +16,55 @@ public class NewlineTrimFormatter implements Formatter {
 
     @Override
     public String format(final String context, final String body) {
+        final TextBuffer buffer = new TextBuffer(body);
+        return format(context, buffer) ? buffer.toString() : body;
+    }
+
+    private boolean startsWith(final CharSequence body, final int offset) {
+        if (offset + newline.length() > body.length()) return false;
+        for (int i = 0; i < newline.length(); i++) {
+            if (body.charAt(offset + i) != newline.charAt(i)) return false;
+        }
+        return true;
+    }
+
+    @Override
+    public boolean format(final String context, final TextBuffer buffer) {
         logger.debug("Trimming {} ...", context);
 
+        final CharSequence body = buffer.getText();
         final int nlen = newline.length();
         final int blen = body.length();
         if (nlen == 0 || blen == 0) {
-            return body;
+            return false;
         }
 
         int start = 0;
-        while (body.startsWith(newline, start)) {
+        while (startsWith(body, start)) {
             start += nlen;
         }
 
         if (start == blen) {
-            return start == nlen ? body : newline;
+            if (start == nlen) return false;
+            buffer.edit().append(newline);
+            buffer.commit();
+            return true;
         }
 
         int end = blen;
-        while (end >= nlen && body.startsWith(newline, end - nlen)) {
+        while (end >= nlen && startsWith(body, end - nlen)) {
             end -= nlen;
         }
 
-        return end == blen - nlen
-                ? body.substring(start)
-                : end == blen
-                        ? body.substring(start) + newline
-                        : body.substring(start, end + nlen);
+        if (start == 0 && end == blen - nlen) return false;
+
+        final StringBuilder output = buffer.edit();
+        if (end == blen) {
+            output.append(body, start, blen).append(newline);
+        } else {
+            output.append(body, start, end + nlen);
+        }
+        buffer.commit();
+        return true;
     }
 }
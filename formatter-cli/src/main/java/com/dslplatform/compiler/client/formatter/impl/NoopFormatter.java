@@ -1,8 +1,10 @@
 package com.dslplatform.compiler.client.formatter.impl;
 
+import com.dslplatform.compiler.client.formatter.BufferFormatter;
 import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.TextBuffer;
 
-public class NoopFormatter implements Formatter {
+public class NoopFormatter implements Formatter, BufferFormatter {
     protected NoopFormatter() {}
 
     public static final NoopFormatter INSTANCE = new NoopFormatter();
@@ -11,4 +13,9 @@ public class NoopFormatter implements Formatter {
     public String format(final String context, final String body) {
         return body;
     }
+
+    @Override
+    public boolean format(final String context, final TextBuffer buffer) {
+        return false;
+    }
 }
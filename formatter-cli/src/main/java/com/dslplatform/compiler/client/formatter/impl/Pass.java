@@ -0,0 +1,15 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+/** A compiled rule, along with what a text has to contain for the rule to change it. */
+final class Pass {
+    public final Rule rule;
+    public final Prefilter prefilter;
+    /** Numbers and patterns of the source rules, as shown in profiles. */
+    public final String label;
+
+    Pass(final Rule rule, final Prefilter prefilter, final String label) {
+        this.rule = rule;
+        this.prefilter = prefilter;
+        this.label = label;
+    }
+}
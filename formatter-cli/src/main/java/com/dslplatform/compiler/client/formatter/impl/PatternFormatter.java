@@ -1,7 +1,9 @@
 package com.dslplatform.compiler.client.formatter.impl;
 
+import com.dslplatform.compiler.client.formatter.BufferFormatter;
 import com.dslplatform.compiler.client.formatter.Formatter;
 import com.dslplatform.compiler.client.formatter.Logger;
+import com.dslplatform.compiler.client.formatter.TextBuffer;
 
 import java.io.BufferedReader;
 import java.io.IOException;
@@ -11,35 +13,57 @@ import java.util.AbstractMap;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
-import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-public class PatternFormatter implements Formatter {
+/**
+ * Applies regex-replacement rules in order, each one to the output of the previous ones.
+ * Rules which cannot interact are run together in a single pass, see {@link RuleCompiler}.
+ * A census of the text is taken first, and passes which cannot match are skipped.
+ * Passes rewrite a shared {@link TextBuffer}, so only the final text becomes a string.
+ */
+public class PatternFormatter implements Formatter, BufferFormatter {
     private final Logger logger;
-    private final Pattern[] patterns;
-    private final String[] replacements;
-
-    private PatternFormatter(final Logger logger, final Pattern[] patterns, final String[] replacements) {
+    private final int patternCount;
+    private final Pass[] passes;
+    private final Profiler profiler;
+    private final Profiler.Probe censusProbe;
+    private final Profiler.Probe[] passProbes;
+    private final boolean mayFail;
+
+    private PatternFormatter(
+            final Logger logger,
+            final int patternCount,
+            final Pass[] passes,
+            final Profiler profiler,
+            final String name) {
         this.logger = logger;
-        this.patterns = patterns;
-        this.replacements = replacements;
+        this.patternCount = patternCount;
+        this.passes = passes;
+        this.profiler = profiler;
+        this.censusProbe = profiler.probe(name + " census");
+        this.passProbes = new Profiler.Probe[passes.length];
+        boolean mayFail = false;
+        for (int i = 0; i < passes.length; i++) {
+            passProbes[i] = profiler.probe(name + " " + passes[i].label);
+            if (passes[i].rule instanceof LegacyRule) mayFail = true;
+        }
+        this.mayFail = mayFail;
     }
 
     public static Formatter fromEntries(final Logger logger, final List<Map.Entry<Pattern, String>> pairs) {
+        return fromEntries(logger, new Profiler(), "patterns", pairs);
+    }
+
+    /** Creates a formatter whose passes are recorded by the profiler under the provided name. */
+    public static Formatter fromEntries(
+            final Logger logger,
+            final Profiler profiler,
+            final String name,
+            final List<Map.Entry<Pattern, String>> pairs) {
         final int count = pairs.size();
         if (count == 0) return NoopFormatter.INSTANCE;
 
-        final Pattern[] patterns = new Pattern[count];
-        final String[] replacements = new String[count];
-
-        int index = 0;
-        for (final Map.Entry<Pattern, String> entry : pairs) {
-            patterns[index] = entry.getKey();
-            replacements[index] = entry.getValue();
-            index++;
-        }
-
-        return new PatternFormatter(logger, patterns, replacements);
+        return new PatternFormatter(logger, count, RuleCompiler.compile(pairs), profiler, name);
     }
 
     private static Map.Entry<Pattern, String> parsePair(final String line) {
@@ -63,6 +87,14 @@ public class PatternFormatter implements Formatter {
     }
 
     public static Formatter fromInputStream(final Logger logger, final InputStream propsStream) throws IOException {
+        return fromInputStream(logger, new Profiler(), "patterns", propsStream);
+    }
+
+    public static Formatter fromInputStream(
+            final Logger logger,
+            final Profiler profiler,
+            final String name,
+            final InputStream propsStream) throws IOException {
         if (propsStream == null) return NoopFormatter.INSTANCE;
 
         final BufferedReader br = new BufferedReader(new InputStreamReader(propsStream, "UTF-8"));
@@ -72,7 +104,7 @@ public class PatternFormatter implements Formatter {
             final String line = br.readLine();
             if (line == null) {
                 br.close();
-                return fromEntries(logger, pairs);
+                return fromEntries(logger, profiler, name, pairs);
             }
 
             final Map.Entry<Pattern, String> pair = parsePair(line);
@@ -82,28 +114,69 @@ public class PatternFormatter implements Formatter {
 
     @Override
     public String format(final String context, final String text) {
-        logger.debug("Applying {} patterns on {} ...", patterns.length, context);
-
-        StringBuffer sb = null;
-        String work = text;
-
-        for (int i = 0; i < patterns.length; i++) {
-            final String replacement = replacements[i];
-            final Matcher m = patterns[i].matcher(work);
-            if (m.find()) {
-                if (sb == null) {
-                    sb = new StringBuffer();
-                } else {
-                    sb.setLength(0);
+        final TextBuffer buffer = new TextBuffer(text);
+        format(context, buffer);
+        return buffer.toString();
+    }
+
+    @Override
+    public boolean format(final String context, final TextBuffer buffer) {
+        logger.debug("Applying {} patterns in {} passes on {} ...", patternCount, passes.length, context);
+
+        // only rules left to appendReplacement can fail, after earlier passes have rewritten the buffer
+        final String original = mayFail ? buffer.toString() : null;
+        try {
+            return applyPasses(buffer);
+        } catch (final RuntimeException e) {
+            if (original != null) buffer.set(original);
+            throw e;
+        }
+    }
+
+    private boolean applyPasses(final TextBuffer buffer) {
+        final boolean profiling = profiler.isEnabled();
+        boolean changed = false;
+        Census census = null;
+
+        for (int i = 0; i < passes.length; i++) {
+            final Pass pass = passes[i];
+            final CharSequence work = buffer.getText();
+            if (!pass.prefilter.isAlways()) {
+                if (census == null) census = profiling ? takeCensus(work) : Census.of(work);
+                if (!pass.prefilter.accepts(census)) {
+                    if (profiling) passProbes[i].skip();
+                    continue;
                 }
+            }
 
-                do {
-                    m.appendReplacement(sb, replacement);
-                } while (m.find());
-                work = m.appendTail(sb).toString();
+            final StringBuilder output = buffer.edit();
+            if ((profiling ? apply(passProbes[i], pass.rule, work, output) : pass.rule.apply(work, output)) != 0) {
+                buffer.commit();
+                changed = true;
+                census = null;
             }
         }
 
-        return work;
+        return changed;
+    }
+
+    private Census takeCensus(final CharSequence work) {
+        final long mark = censusProbe.mark();
+        final long start = System.nanoTime();
+        final Census census = Census.of(work);
+        censusProbe.record(mark, start, 0, work.length(), 0);
+        return census;
+    }
+
+    private static int apply(
+            final Profiler.Probe probe,
+            final Rule rule,
+            final CharSequence work,
+            final StringBuilder output) {
+        final long mark = probe.mark();
+        final long start = System.nanoTime();
+        final int matches = rule.apply(work, output);
+        probe.record(mark, start, matches, work.length(), matches != 0 ? output.length() : work.length());
+        return matches;
     }
 }
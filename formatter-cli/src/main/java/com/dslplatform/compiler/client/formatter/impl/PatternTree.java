@@ -0,0 +1,424 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Parse tree of the subset of the {@link java.util.regex.Pattern} syntax used by the rule
+ * files: literals, escapes, character classes, groups, alternations and quantifiers.
+ * Anything else (anchors, lookarounds, back references, inline flags, ...) is rejected,
+ * and such rules are only ever run through the regex engine as they are.
+ */
+final class PatternTree {
+    static final int UNBOUNDED = Integer.MAX_VALUE;
+
+    private static int add(final int left, final int right) {
+        return left == UNBOUNDED || right == UNBOUNDED ? UNBOUNDED : left + right;
+    }
+
+    private static int multiply(final int length, final int count) {
+        if (length == 0 || count == 0) return 0;
+        if (length == UNBOUNDED || count == UNBOUNDED) return UNBOUNDED;
+        final long product = (long) length * count;
+        return product >= UNBOUNDED ? UNBOUNDED : (int) product;
+    }
+
+    abstract static class Node {
+        public final int minLength;
+        public final int maxLength;
+
+        Node(final int minLength, final int maxLength) {
+            this.minLength = minLength;
+            this.maxLength = maxLength;
+        }
+
+        abstract void collectAlphabet(BitSet alphabet);
+
+        /** Records the minimum length of the capturing groups which take part in every match. */
+        abstract void collectGroups(int[] groupMinLengths, boolean mandatory);
+    }
+
+    /** A single character out of a set; a literal is a set of one. */
+    static final class CharSet extends Node {
+        public final BitSet chars;
+
+        CharSet(final BitSet chars) {
+            super(1, 1);
+            this.chars = chars;
+        }
+
+        @Override
+        void collectAlphabet(final BitSet alphabet) {
+            alphabet.or(chars);
+        }
+
+        @Override
+        void collectGroups(final int[] groupMinLengths, final boolean mandatory) {}
+    }
+
+    static final class Sequence extends Node {
+        public final Node[] items;
+
+        private static int sum(final Node[] items, final boolean max) {
+            int total = 0;
+            for (final Node item : items) {
+                total = add(total, max ? item.maxLength : item.minLength);
+            }
+            return total;
+        }
+
+        Sequence(final Node[] items) {
+            super(sum(items, false), sum(items, true));
+            this.items = items;
+        }
+
+        @Override
+        void collectAlphabet(final BitSet alphabet) {
+            for (final Node item : items) item.collectAlphabet(alphabet);
+        }
+
+        @Override
+        void collectGroups(final int[] groupMinLengths, final boolean mandatory) {
+            for (final Node item : items) item.collectGroups(groupMinLengths, mandatory);
+        }
+    }
+
+    static final class Alternation extends Node {
+        public final Node[] branches;
+
+        private static int bound(final Node[] branches, final boolean max) {
+            int bound = max ? 0 : UNBOUNDED;
+            for (final Node branch : branches) {
+                bound = max ? Math.max(bound, branch.maxLength) : Math.min(bound, branch.minLength);
+            }
+            return bound;
+        }
+
+        Alternation(final Node[] branches) {
+            super(bound(branches, false), bound(branches, true));
+            this.branches = branches;
+        }
+
+        @Override
+        void collectAlphabet(final BitSet alphabet) {
+            for (final Node branch : branches) branch.collectAlphabet(alphabet);
+        }
+
+        @Override
+        void collectGroups(final int[] groupMinLengths, final boolean mandatory) {
+            for (final Node branch : branches) branch.collectGroups(groupMinLengths, false);
+        }
+    }
+
+    static final class Group extends Node {
+        /** Index of a capturing group, or zero for a non-capturing one. */
+        public final int index;
+        public final Node body;
+
+        Group(final int index, final Node body) {
+            super(body.minLength, body.maxLength);
+            this.index = index;
+            this.body = body;
+        }
+
+        @Override
+        void collectAlphabet(final BitSet alphabet) {
+            body.collectAlphabet(alphabet);
+        }
+
+        @Override
+        void collectGroups(final int[] groupMinLengths, final boolean mandatory) {
+            if (index != 0) groupMinLengths[index] = mandatory ? minLength : 0;
+            body.collectGroups(groupMinLengths, mandatory);
+        }
+    }
+
+    enum Mode { GREEDY, LAZY, POSSESSIVE }
+
+    static final class Repeat extends Node {
+        public final Node body;
+        public final int min;
+        public final int max;
+        public final Mode mode;
+
+        Repeat(final Node body, final int min, final int max, final Mode mode) {
+            super(multiply(body.minLength, min), multiply(body.maxLength, max));
+            this.body = body;
+            this.min = min;
+            this.max = max;
+            this.mode = mode;
+        }
+
+        @Override
+        void collectAlphabet(final BitSet alphabet) {
+            body.collectAlphabet(alphabet);
+        }
+
+        @Override
+        void collectGroups(final int[] groupMinLengths, final boolean mandatory) {
+            body.collectGroups(groupMinLengths, mandatory && min > 0);
+        }
+    }
+
+    public final Node root;
+    public final int groupCount;
+    /** Every character a match can consist of. */
+    public final BitSet alphabet = new BitSet();
+    /** Minimum length of each capturing group in a match, zero when it may not take part. */
+    public final int[] groupMinLengths;
+
+    private PatternTree(final Node root, final int groupCount) {
+        this.root = root;
+        this.groupCount = groupCount;
+        root.collectAlphabet(alphabet);
+        groupMinLengths = new int[groupCount + 1];
+        groupMinLengths[0] = root.minLength;
+        root.collectGroups(groupMinLengths, true);
+    }
+
+    /** Returns the only string the node can match, or {@code null} if it can match several. */
+    static String constant(final Node node) {
+        if (node instanceof CharSet) {
+            final BitSet chars = ((CharSet) node).chars;
+            return chars.cardinality() == 1 ? String.valueOf((char) chars.nextSetBit(0)) : null;
+        }
+        if (node instanceof Group) return constant(((Group) node).body);
+        if (node instanceof Sequence) {
+            final StringBuilder sb = new StringBuilder();
+            for (final Node item : ((Sequence) node).items) {
+                final String constant = constant(item);
+                if (constant == null) return null;
+                sb.append(constant);
+            }
+            return sb.toString();
+        }
+        if (node instanceof Repeat) {
+            final Repeat repeat = (Repeat) node;
+            final String constant = constant(repeat.body);
+            if (constant == null || repeat.min != repeat.max) return null;
+            final StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < repeat.min; i++) sb.append(constant);
+            return sb.toString();
+        }
+        return null;
+    }
+
+    /** Parses the regex, returning {@code null} if it uses syntax outside of the supported subset. */
+    public static PatternTree parse(final String regex) {
+        try {
+            final Parser parser = new Parser(regex);
+            final Node root = parser.parseAlternation();
+            if (parser.cursor != regex.length()) return null;
+            return new PatternTree(root, parser.groupCount);
+        } catch (final Unsupported e) {
+            return null;
+        }
+    }
+
+    /**
+     * Thrown by the parser on syntax outside of the supported subset, and caught only by
+     * {@link #parse}. A single instance without a stack trace is enough, since it is never reported.
+     */
+    private static final class Unsupported extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        static final Unsupported INSTANCE = new Unsupported();
+
+        @Override
+        public synchronized Throwable fillInStackTrace() {
+            return this;
+        }
+    }
+
+    private static final class Parser {
+        private final String regex;
+        private int cursor;
+        private int groupCount;
+
+        Parser(final String regex) {
+            this.regex = regex;
+        }
+
+        private static Unsupported unsupported() {
+            return Unsupported.INSTANCE;
+        }
+
+        private boolean atEnd() {
+            return cursor == regex.length();
+        }
+
+        private char peek() {
+            if (atEnd()) throw unsupported();
+            return regex.charAt(cursor);
+        }
+
+        private char next() {
+            final char ch = peek();
+            cursor++;
+            return ch;
+        }
+
+        Node parseAlternation() {
+            final List<Node> branches = new ArrayList<Node>();
+            branches.add(parseSequence());
+            while (!atEnd() && peek() == '|') {
+                cursor++;
+                branches.add(parseSequence());
+            }
+            return branches.size() == 1
+                    ? branches.get(0)
+                    : new Alternation(branches.toArray(new Node[branches.size()]));
+        }
+
+        private Node parseSequence() {
+            final List<Node> items = new ArrayList<Node>();
+            while (!atEnd() && peek() != '|' && peek() != ')') {
+                items.add(parseQuantifier(parseAtom()));
+            }
+            return items.size() == 1
+                    ? items.get(0)
+                    : new Sequence(items.toArray(new Node[items.size()]));
+        }
+
+        private int parseNumber() {
+            final int start = cursor;
+            while (!atEnd() && peek() >= '0' && peek() <= '9') cursor++;
+            if (start == cursor || cursor - start > 6) throw unsupported();
+            return Integer.parseInt(regex.substring(start, cursor));
+        }
+
+        private Node parseQuantifier(final Node atom) {
+            if (atEnd()) return atom;
+
+            final int min;
+            final int max;
+            switch (peek()) {
+                case '*': cursor++; min = 0; max = UNBOUNDED; break;
+                case '+': cursor++; min = 1; max = UNBOUNDED; break;
+                case '?': cursor++; min = 0; max = 1; break;
+                case '{':
+                    cursor++;
+                    min = parseNumber();
+                    if (peek() == ',') {
+                        cursor++;
+                        max = peek() == '}' ? UNBOUNDED : parseNumber();
+                    } else {
+                        max = min;
+                    }
+                    if (next() != '}' || max < min) throw unsupported();
+                    break;
+                default:
+                    return atom;
+            }
+
+            Mode mode = Mode.GREEDY;
+            if (!atEnd() && peek() == '?') {
+                cursor++;
+                mode = Mode.LAZY;
+            } else if (!atEnd() && peek() == '+') {
+                cursor++;
+                mode = Mode.POSSESSIVE;
+            }
+            return new Repeat(atom, min, max, mode);
+        }
+
+        private Node parseAtom() {
+            final char ch = next();
+            switch (ch) {
+                case '(':
+                    final int index;
+                    if (peek() == '?') {
+                        cursor++;
+                        if (next() != ':') throw unsupported();
+                        index = 0;
+                    } else {
+                        index = ++groupCount;
+                    }
+                    final Node body = parseAlternation();
+                    if (next() != ')') throw unsupported();
+                    return new Group(index, body);
+                case '[':
+                    return new CharSet(parseClass());
+                case '\\':
+                    return new CharSet(parseEscape());
+                case '.': case '^': case '$': case '*': case '+': case '?': case '{':
+                    throw unsupported();
+                default:
+                    return new CharSet(single(ch));
+            }
+        }
+
+        private static boolean isSurrogate(final char ch) {
+            return ch >= Character.MIN_SURROGATE && ch <= Character.MAX_SURROGATE;
+        }
+
+        private static BitSet single(final char ch) {
+            if (isSurrogate(ch)) throw unsupported();
+            final BitSet chars = new BitSet();
+            chars.set(ch);
+            return chars;
+        }
+
+        private static BitSet of(final String chars) {
+            final BitSet set = new BitSet();
+            for (int i = 0; i < chars.length(); i++) set.set(chars.charAt(i));
+            return set;
+        }
+
+        private static BitSet range(final char from, final char to) {
+            final BitSet set = new BitSet();
+            set.set(from, to + 1);
+            return set;
+        }
+
+        private BitSet parseEscape() {
+            final char ch = next();
+            switch (ch) {
+                case 't': return single('\t');
+                case 'n': return single('\n');
+                case 'r': return single('\r');
+                case 'f': return single('\f');
+                case 'a': return single('\u0007');
+                case 'e': return single('\u001B');
+                case 's': return of(" \t\n\u000B\f\r");
+                case 'd': return range('0', '9');
+                case 'w':
+                    final BitSet word = range('a', 'z');
+                    word.or(range('A', 'Z'));
+                    word.or(range('0', '9'));
+                    word.set('_');
+                    return word;
+                default:
+                    if ((ch >= 'a' && ch <= 'z') || (ch >= 'A' && ch <= 'Z') || (ch >= '0' && ch <= '9')) {
+                        throw unsupported();
+                    }
+                    return single(ch);
+            }
+        }
+
+        private BitSet parseClass() {
+            if (peek() == '^' || peek() == ']') throw unsupported();
+
+            final BitSet chars = new BitSet();
+            while (peek() != ']') {
+                final char ch = next();
+                if (ch == '[' || (ch == '&' && peek() == '&')) throw unsupported();
+
+                final BitSet item = ch == '\\' ? parseEscape() : single(ch);
+                if (peek() == '-' && cursor + 1 < regex.length() && regex.charAt(cursor + 1) != ']') {
+                    cursor++;
+                    final char to = next();
+                    if (item.cardinality() != 1 || to == '\\' || to == '[' || isSurrogate(to)) throw unsupported();
+                    final char from = (char) item.nextSetBit(0);
+                    if (to < from) throw unsupported();
+                    chars.or(range(from, to));
+                } else {
+                    chars.or(item);
+                }
+            }
+            cursor++;
+            return chars;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.FormatterProvider;
+import com.dslplatform.compiler.client.formatter.IncrementalFormatter;
+import com.dslplatform.compiler.client.formatter.Logger;
+
+import java.util.Properties;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread-safe front for formatters which are not: each call borrows an idle instance,
+ * creating a new one when all of them are in use, so the pool grows to the number
+ * of threads formatting the language at the same time.
+ */
+public class PooledFormatter implements IncrementalFormatter {
+    private final Logger logger;
+    private final FormatterProvider provider;
+    private final Properties properties;
+    private final ConcurrentLinkedQueue<Formatter> idle = new ConcurrentLinkedQueue<Formatter>();
+
+    public PooledFormatter(final Logger logger, final FormatterProvider provider, final Properties properties) {
+        this.logger = logger;
+        this.provider = provider;
+        this.properties = properties;
+        idle.add(provider.createFormatter(logger, properties));
+    }
+
+    @Override
+    public String format(final String context, final String body) {
+        return format(context, body, null);
+    }
+
+    @Override
+    public String format(final String context, final String body, final String previous) {
+        Formatter formatter = idle.poll();
+        if (formatter == null) {
+            formatter = provider.createFormatter(logger, properties);
+        }
+
+        try {
+            return formatter instanceof IncrementalFormatter && previous != null
+                    ? ((IncrementalFormatter) formatter).format(context, body, previous)
+                    : formatter.format(context, body);
+        } finally {
+            idle.add(formatter);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * What a text must contain for a pattern to match anywhere in it: every required character,
+ * at least one character a match can start with, and every required pair of adjacent
+ * characters (e.g. {@code " \n"} for trailing spaces). Checked against a {@link Census},
+ * so that a rule which cannot match does not have to scan the text at all.
+ */
+final class Prefilter {
+    /** Prefilter of patterns which are not analyzed, or which can match an empty string. */
+    public static final Prefilter ALWAYS = new Prefilter(null, false, null, false, null, null);
+
+    private final long[] requiredChars;
+    private final boolean requiresOther;
+    private final long[] firstChars;
+    private final boolean firstOther;
+    private final int[] requiredPairs;
+    /** Set for fused rules, which can match whenever any of their rules can. */
+    private final Prefilter[] alternatives;
+
+    private Prefilter(
+            final long[] requiredChars,
+            final boolean requiresOther,
+            final long[] firstChars,
+            final boolean firstOther,
+            final int[] requiredPairs,
+            final Prefilter[] alternatives) {
+        this.requiredChars = requiredChars;
+        this.requiresOther = requiresOther;
+        this.firstChars = firstChars;
+        this.firstOther = firstOther;
+        this.requiredPairs = requiredPairs;
+        this.alternatives = alternatives;
+    }
+
+    public boolean isAlways() {
+        return this == ALWAYS;
+    }
+
+    public boolean accepts(final Census census) {
+        if (this == ALWAYS) return true;
+
+        if (alternatives != null) {
+            for (final Prefilter alternative : alternatives) {
+                if (alternative.accepts(census)) return true;
+            }
+            return false;
+        }
+
+        if (!census.containsAll(requiredChars) || (requiresOther && !census.containsOther())) return false;
+        if (!census.containsAny(firstChars) && !(firstOther && census.containsOther())) return false;
+        for (final int pair : requiredPairs) {
+            if (!census.containsPair(pair)) return false;
+        }
+        return true;
+    }
+
+    public static Prefilter any(final List<Prefilter> prefilters) {
+        if (prefilters.size() == 1) return prefilters.get(0);
+        for (final Prefilter prefilter : prefilters) {
+            if (prefilter.isAlways()) return ALWAYS;
+        }
+        return new Prefilter(null, false, null, false, null, prefilters.toArray(new Prefilter[prefilters.size()]));
+    }
+
+    private static long[] asciiMask(final BitSet chars) {
+        final long[] mask = new long[2];
+        for (int ch = chars.nextSetBit(0); ch != -1 && ch < 128; ch = chars.nextSetBit(ch + 1)) {
+            mask[ch >>> 6] |= 1L << ch;
+        }
+        return mask;
+    }
+
+    public static Prefilter of(final PatternTree tree) {
+        if (tree == null || tree.root.minLength == 0) return ALWAYS;
+
+        final BitSet required = required(tree.root);
+        final BitSet first = first(tree.root);
+        final List<Integer> pairs = new ArrayList<Integer>();
+        collectPairs(tree.root, pairs);
+
+        final int[] requiredPairs = new int[pairs.size()];
+        for (int i = 0; i < requiredPairs.length; i++) {
+            requiredPairs[i] = pairs.get(i);
+        }
+        return new Prefilter(
+                asciiMask(required),
+                required.nextSetBit(128) != -1,
+                asciiMask(first),
+                first.nextSetBit(128) != -1,
+                requiredPairs,
+                null);
+    }
+
+    /** Characters contained in every match of the node. */
+    private static BitSet required(final PatternTree.Node node) {
+        if (node instanceof PatternTree.CharSet) {
+            final BitSet chars = ((PatternTree.CharSet) node).chars;
+            return chars.cardinality() == 1 ? (BitSet) chars.clone() : new BitSet();
+        }
+        if (node instanceof PatternTree.Group) return required(((PatternTree.Group) node).body);
+        if (node instanceof PatternTree.Repeat) {
+            final PatternTree.Repeat repeat = (PatternTree.Repeat) node;
+            return repeat.min > 0 ? required(repeat.body) : new BitSet();
+        }
+        if (node instanceof PatternTree.Sequence) {
+            final BitSet required = new BitSet();
+            for (final PatternTree.Node item : ((PatternTree.Sequence) node).items) {
+                required.or(required(item));
+            }
+            return required;
+        }
+        BitSet required = null;
+        for (final PatternTree.Node branch : ((PatternTree.Alternation) node).branches) {
+            if (required == null) {
+                required = required(branch);
+            } else {
+                required.and(required(branch));
+            }
+        }
+        return required;
+    }
+
+    /** Characters a non-empty match of the node can start with, or end with when reversed. */
+    private static BitSet edge(final PatternTree.Node node, final boolean last) {
+        if (node instanceof PatternTree.CharSet) return (BitSet) ((PatternTree.CharSet) node).chars.clone();
+        if (node instanceof PatternTree.Group) return edge(((PatternTree.Group) node).body, last);
+        if (node instanceof PatternTree.Repeat) {
+            final PatternTree.Repeat repeat = (PatternTree.Repeat) node;
+            return repeat.max > 0 ? edge(repeat.body, last) : new BitSet();
+        }
+
+        final BitSet edge = new BitSet();
+        if (node instanceof PatternTree.Sequence) {
+            final PatternTree.Node[] items = ((PatternTree.Sequence) node).items;
+            for (int i = 0; i < items.length; i++) {
+                final PatternTree.Node item = items[last ? items.length - 1 - i : i];
+                edge.or(edge(item, last));
+                if (item.minLength > 0) break;
+            }
+        } else {
+            for (final PatternTree.Node branch : ((PatternTree.Alternation) node).branches) {
+                edge.or(edge(branch, last));
+            }
+        }
+        return edge;
+    }
+
+    private static BitSet first(final PatternTree.Node node) {
+        return edge(node, false);
+    }
+
+    private static void addPair(final PatternTree.Node left, final PatternTree.Node right, final List<Integer> pairs) {
+        final BitSet last = edge(left, true);
+        final BitSet first = edge(right, false);
+        if (last.cardinality() != 1 || first.cardinality() != 1) return;
+
+        final int lastChar = last.nextSetBit(0);
+        final int firstChar = first.nextSetBit(0);
+        if (lastChar < 128 && firstChar < 128) {
+            final int pair = Census.pair((char) lastChar, (char) firstChar);
+            if (!pairs.contains(pair)) pairs.add(pair);
+        }
+    }
+
+    /** Pairs of adjacent characters contained in every match of the node. */
+    private static void collectPairs(final PatternTree.Node node, final List<Integer> pairs) {
+        if (node instanceof PatternTree.Group) {
+            collectPairs(((PatternTree.Group) node).body, pairs);
+        } else if (node instanceof PatternTree.Repeat) {
+            final PatternTree.Repeat repeat = (PatternTree.Repeat) node;
+            if (repeat.min > 0 && repeat.body.minLength > 0) {
+                collectPairs(repeat.body, pairs);
+                if (repeat.min > 1) addPair(repeat.body, repeat.body, pairs);
+            }
+        } else if (node instanceof PatternTree.Sequence) {
+            final PatternTree.Node[] items = ((PatternTree.Sequence) node).items;
+            for (int i = 0; i < items.length; i++) {
+                if (items[i].minLength == 0) continue;
+                collectPairs(items[i], pairs);
+                if (i + 1 < items.length && items[i + 1].minLength > 0) addPair(items[i], items[i + 1], pairs);
+            }
+        } else if (node instanceof PatternTree.Alternation) {
+            List<Integer> common = null;
+            for (final PatternTree.Node branch : ((PatternTree.Alternation) node).branches) {
+                final List<Integer> branchPairs = new ArrayList<Integer>();
+                collectPairs(branch, branchPairs);
+                if (common == null) {
+                    common = branchPairs;
+                } else {
+                    common.retainAll(branchPairs);
+                }
+            }
+            for (final Integer pair : common) {
+                if (!pairs.contains(pair)) pairs.add(pair);
+            }
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.BufferFormatter;
+import com.dslplatform.compiler.client.formatter.Logger;
+import com.dslplatform.compiler.client.formatter.TextBuffer;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters for every formatting stage and every pattern pass, so that a slow stage or a
+ * pathological rule can be singled out from a single run. Probes are registered when the
+ * formatters are created, but only record while at least one run has profiling started.
+ *
+ * <p>Allocated bytes are read from the per-thread allocation counter of HotSpot, which is
+ * looked up reflectively since {@code com.sun.management} is not available everywhere.
+ */
+public final class Profiler {
+    public final class Probe {
+        public final String name;
+
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong skips = new AtomicLong();
+        private final AtomicLong matches = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+        private final AtomicLong charsIn = new AtomicLong();
+        private final AtomicLong charsOut = new AtomicLong();
+        private final AtomicLong allocated = new AtomicLong();
+
+        private Probe(final String name) {
+            this.name = name;
+        }
+
+        /** Starting point for {@link #record}, in allocated bytes of the current thread. */
+        public long mark() {
+            return allocatedBytes();
+        }
+
+        /** Records a call which found the provided number of matches. */
+        public void record(
+                final long mark,
+                final long startNanos,
+                final int matchCount,
+                final int lengthIn,
+                final int lengthOut) {
+            nanos.addAndGet(System.nanoTime() - startNanos);
+            calls.incrementAndGet();
+            matches.addAndGet(matchCount);
+            charsIn.addAndGet(lengthIn);
+            charsOut.addAndGet(lengthOut);
+            if (mark != -1L) allocated.addAndGet(allocatedBytes() - mark);
+        }
+
+        /** Counts a call which was skipped without looking at the text. */
+        public void skip() {
+            skips.incrementAndGet();
+        }
+
+        private void reset() {
+            calls.set(0L);
+            skips.set(0L);
+            matches.set(0L);
+            nanos.set(0L);
+            charsIn.set(0L);
+            charsOut.set(0L);
+            allocated.set(0L);
+        }
+    }
+
+    private final List<Probe> probes = new CopyOnWriteArrayList<Probe>();
+    private final AtomicLong active = new AtomicLong();
+    private volatile boolean enabled;
+
+    public Probe probe(final String name) {
+        final Probe probe = new Probe(name);
+        probes.add(probe);
+        return probe;
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /** Starts recording, clearing the counters unless another run is already profiling. */
+    public void start() {
+        if (active.getAndIncrement() == 0L) {
+            for (final Probe probe : probes) probe.reset();
+            enabled = true;
+        }
+    }
+
+    public void stop() {
+        if (active.decrementAndGet() == 0L) enabled = false;
+    }
+
+    private static final Object threadBean;
+    private static final Method getThreadAllocatedBytes;
+
+    static {
+        Object bean = null;
+        Method method = null;
+        try {
+            final Class<?> beanClass = Class.forName("com.sun.management.ThreadMXBean");
+            final Object platformBean = ManagementFactory.getThreadMXBean();
+            if (beanClass.isInstance(platformBean)
+                    && (Boolean) beanClass.getMethod("isThreadAllocatedMemorySupported").invoke(platformBean)) {
+                beanClass.getMethod("setThreadAllocatedMemoryEnabled", boolean.class).invoke(platformBean, true);
+                bean = platformBean;
+                method = beanClass.getMethod("getThreadAllocatedBytes", long.class);
+            }
+        } catch (final Exception e) {
+            // not a HotSpot JVM, allocations will not be reported
+        }
+        threadBean = bean;
+        getThreadAllocatedBytes = method;
+    }
+
+    /** Bytes allocated by the current thread so far, or -1 if the JVM does not count them. */
+    static long allocatedBytes() {
+        if (getThreadAllocatedBytes == null) return -1L;
+        try {
+            return (Long) getThreadAllocatedBytes.invoke(threadBean, Thread.currentThread().getId());
+        } catch (final Exception e) {
+            return -1L;
+        }
+    }
+
+    /** Wraps a stage so that each of its calls is recorded, counting changed texts as matches. */
+    public BufferFormatter profile(final String name, final BufferFormatter formatter) {
+        if (formatter == NoopFormatter.INSTANCE) return formatter;
+
+        final Probe probe = probe(name);
+        return new BufferFormatter() {
+            @Override
+            public boolean format(final String context, final TextBuffer buffer) {
+                if (!enabled) return formatter.format(context, buffer);
+
+                final long mark = probe.mark();
+                final long start = System.nanoTime();
+                final int lengthIn = buffer.length();
+                boolean changed = false;
+                try {
+                    changed = formatter.format(context, buffer);
+                    return changed;
+                } finally {
+                    probe.record(mark, start, changed ? 1 : 0, lengthIn, buffer.length());
+                }
+            }
+
+            @Override
+            public String toString() {
+                return formatter.toString();
+            }
+        };
+    }
+
+    /** Logs the probes which were used, slowest first. */
+    public void report(final Logger logger) {
+        // times are copied first, since other runs of a daemon may still be recording
+        final Map<Probe, Long> used = new HashMap<Probe, Long>();
+        for (final Probe probe : probes) {
+            if (probe.calls.get() != 0L || probe.skips.get() != 0L) used.put(probe, probe.nanos.get());
+        }
+        final List<Probe> sorted = new ArrayList<Probe>(used.keySet());
+        Collections.sort(sorted, new Comparator<Probe>() {
+            @Override
+            public int compare(final Probe left, final Probe right) {
+                return used.get(right).compareTo(used.get(left));
+            }
+        });
+
+        for (final Probe probe : sorted) {
+            logger.info("Profile {}: {} us in {} calls ({} skipped, {} matches), {} chars in, {} chars out, {}",
+                    probe.name,
+                    used.get(probe) / 1000L,
+                    probe.calls.get(),
+                    probe.skips.get(),
+                    probe.matches.get(),
+                    probe.charsIn.get(),
+                    probe.charsOut.get(),
+                    getThreadAllocatedBytes == null ? "allocations unknown" : probe.allocated.get() + " bytes allocated");
+        }
+    }
+}
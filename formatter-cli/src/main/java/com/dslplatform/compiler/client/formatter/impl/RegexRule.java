@@ -0,0 +1,64 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs one or more rules in a single regex pass. Fused rules form an alternation in which
+ * each rule is wrapped in a capturing group, telling which of them matched.
+ */
+final class RegexRule implements Rule {
+    private final Pattern pattern;
+    private final Replacement[] replacements;
+    /** Group of each alternative, holding its whole match; its own groups follow it. */
+    private final int[] bases;
+
+    private RegexRule(final Pattern pattern, final Replacement[] replacements, final int[] bases) {
+        this.pattern = pattern;
+        this.replacements = replacements;
+        this.bases = bases;
+    }
+
+    RegexRule(final Pattern pattern, final Replacement replacement) {
+        this(pattern, new Replacement[] { replacement }, new int[] { 0 });
+    }
+
+    static RegexRule fuse(final List<PatternTree> trees, final List<Pattern> patterns, final List<Replacement> replacements) {
+        final int count = patterns.size();
+        final StringBuilder alternation = new StringBuilder();
+        final int[] bases = new int[count];
+        int base = 1;
+        for (int i = 0; i < count; i++) {
+            if (i > 0) alternation.append('|');
+            alternation.append('(').append(patterns.get(i).pattern()).append(')');
+            bases[i] = base;
+            base += 1 + trees.get(i).groupCount;
+        }
+
+        return new RegexRule(
+                Pattern.compile(alternation.toString()),
+                replacements.toArray(new Replacement[count]),
+                bases);
+    }
+
+    @Override
+    public int apply(final CharSequence input, final StringBuilder output) {
+        final Matcher m = pattern.matcher(input);
+        if (!m.find()) return 0;
+
+        int matches = 0;
+        int last = 0;
+        do {
+            int alternative = 0;
+            while (m.start(bases[alternative]) == -1) alternative++;
+
+            output.append(input, last, m.start());
+            replacements[alternative].appendTo(output, input, m, bases[alternative]);
+            last = m.end();
+            matches++;
+        } while (m.find());
+        output.append(input, last, input.length());
+        return matches;
+    }
+}
@@ -0,0 +1,51 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+/**
+ * Kernel collapsing runs of a repeated unit, such as blank lines with
+ * {@code '(\n\n)\n+' => '$1'}. The unit never overlaps itself, so runs can be counted
+ * unit by unit without missing a match the regex engine would find.
+ */
+final class RepeatRunRule implements Rule {
+    private final String unit;
+    private final int minUnits;
+    private final String output;
+
+    RepeatRunRule(final String unit, final int minUnits, final String output) {
+        this.unit = unit;
+        this.minUnits = minUnits;
+        this.output = output;
+    }
+
+    @Override
+    public int apply(final CharSequence input, final StringBuilder output) {
+        final int length = input.length();
+        final int unitLength = unit.length();
+        final char first = unit.charAt(0);
+        int matches = 0;
+        int last = 0;
+        int cursor = 0;
+        while (cursor < length) {
+            if (input.charAt(cursor) != first || !LiteralRule.matchesAt(input, cursor, unit)) {
+                cursor++;
+                continue;
+            }
+
+            final int start = cursor;
+            int units = 0;
+            do {
+                cursor += unitLength;
+                units++;
+            } while (LiteralRule.matchesAt(input, cursor, unit));
+
+            if (units >= minUnits) {
+                output.append(input, last, start).append(this.output);
+                last = cursor;
+                matches++;
+            }
+        }
+
+        if (matches == 0) return 0;
+        output.append(input, last, length);
+        return matches;
+    }
+}
@@ -0,0 +1,100 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.regex.Matcher;
+
+/**
+ * Replacement string parsed ahead of time, following the rules of
+ * {@link Matcher#appendReplacement}: {@code $n} refers to a group, taking as many digits as
+ * still form a valid group number, and a backslash escapes the following character.
+ */
+final class Replacement {
+    /** Literal text around the group references, one more than there are references. */
+    private final String[] literals;
+    private final int[] groups;
+
+    private Replacement(final String[] literals, final int[] groups) {
+        this.literals = literals;
+        this.groups = groups;
+    }
+
+    /**
+     * Returns {@code null} for replacements which {@link Matcher#appendReplacement} would reject
+     * or which use named groups, so that they keep going through the regex engine as they are.
+     */
+    public static Replacement parse(final String replacement, final int groupCount) {
+        final List<String> literals = new ArrayList<String>();
+        final List<Integer> groups = new ArrayList<Integer>();
+        final StringBuilder literal = new StringBuilder();
+
+        int cursor = 0;
+        while (cursor < replacement.length()) {
+            final char ch = replacement.charAt(cursor++);
+            if (ch == '\\') {
+                if (cursor == replacement.length()) return null;
+                literal.append(replacement.charAt(cursor++));
+            } else if (ch == '$') {
+                if (cursor == replacement.length()) return null;
+                int group = replacement.charAt(cursor++) - '0';
+                if (group < 0 || group > 9) return null;
+                while (cursor < replacement.length()) {
+                    final int digit = replacement.charAt(cursor) - '0';
+                    if (digit < 0 || digit > 9) break;
+                    final int longer = group * 10 + digit;
+                    if (longer > groupCount) break;
+                    group = longer;
+                    cursor++;
+                }
+                if (group > groupCount) return null;
+
+                literals.add(literal.toString());
+                literal.setLength(0);
+                groups.add(group);
+            } else {
+                literal.append(ch);
+            }
+        }
+        literals.add(literal.toString());
+
+        final int[] groupArray = new int[groups.size()];
+        for (int i = 0; i < groupArray.length; i++) {
+            groupArray[i] = groups.get(i);
+        }
+        return new Replacement(literals.toArray(new String[literals.size()]), groupArray);
+    }
+
+    /**
+     * Appends the replacement of the current match, whose groups are numbered from {@code base}
+     * within the matcher (the whole match being group {@code base} itself).
+     */
+    public void appendTo(final StringBuilder output, final CharSequence input, final Matcher matcher, final int base) {
+        output.append(literals[0]);
+        for (int i = 0; i < groups.length; i++) {
+            final int start = matcher.start(base + groups[i]);
+            if (start != -1) output.append(input, start, matcher.end(base + groups[i]));
+            output.append(literals[i + 1]);
+        }
+    }
+
+    public boolean hasGroups() {
+        return groups.length != 0;
+    }
+
+    /** Characters the replacement adds on its own, besides the ones copied from the match. */
+    public BitSet getLiteralChars() {
+        final BitSet chars = new BitSet();
+        for (final String literal : literals) {
+            for (int i = 0; i < literal.length(); i++) chars.set(literal.charAt(i));
+        }
+        return chars;
+    }
+
+    public int getMinLength(final int[] groupMinLengths) {
+        int length = 0;
+        for (final String literal : literals) length += literal.length();
+        for (final int group : groups) length += groupMinLengths[group];
+        return length;
+    }
+}
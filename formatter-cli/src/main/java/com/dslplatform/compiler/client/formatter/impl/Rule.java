@@ -0,0 +1,11 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+/** A single pass of a {@link PatternFormatter} over the text. */
+interface Rule {
+    /**
+     * Writes the rewritten input into the empty output.
+     *
+     * @return the number of matches, zero if nothing matched, in which case the output is left untouched
+     */
+    int apply(CharSequence input, StringBuilder output);
+}
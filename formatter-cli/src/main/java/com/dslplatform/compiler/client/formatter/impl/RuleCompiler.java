@@ -0,0 +1,231 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Compiles the rules of a {@link PatternFormatter} into as few passes as possible, while
+ * producing exactly the same output as running every rule in its own pass.
+ *
+ * <p>Consecutive rules are fused into a single alternation when none of them can see the
+ * output of an earlier one: a match only ever consists of the characters in the alphabet of
+ * its pattern, so a later rule is unaffected by an earlier one if their alphabets are
+ * disjoint and the earlier one neither writes characters of the later alphabet nor (by
+ * deleting its match) joins two runs of them together, unless the later rule only ever
+ * matches a single character.
+ *
+ * <p>Rules of the most common shapes are run by hand-written kernels instead of the regex
+ * engine: literals ({@link LiteralRule}), runs before a literal ({@link TrailingRunRule})
+ * and runs of a repeated unit ({@link RepeatRunRule}). A kernel is only used when the
+ * replacement of every match it can find is the same string.
+ *
+ * <p>Every pass also gets a {@link Prefilter}, so that it can be skipped when the text
+ * lacks the characters its rules need.
+ */
+final class RuleCompiler {
+    private RuleCompiler() {}
+
+    private static final class Source {
+        public final int number;
+        public final Pattern pattern;
+        public final String replacementText;
+        public final PatternTree tree;
+        public final Replacement replacement;
+
+        Source(final int number, final Pattern pattern, final String replacementText) {
+            this.number = number;
+            this.pattern = pattern;
+            this.replacementText = replacementText;
+            this.tree = pattern.flags() == 0 ? PatternTree.parse(pattern.pattern()) : null;
+            this.replacement = Replacement.parse(replacementText, pattern.matcher("").groupCount());
+        }
+
+        boolean isFusable() {
+            return tree != null && replacement != null && tree.root.minLength > 0;
+        }
+
+        /** Checks whether running this rule first cannot change the matches of the later one. */
+        boolean isIndependentOf(final Source later) {
+            final BitSet alphabet = later.tree.alphabet;
+            return !tree.alphabet.intersects(alphabet)
+                    && !replacement.getLiteralChars().intersects(alphabet)
+                    && (replacement.getMinLength(tree.groupMinLengths) > 0 || later.tree.root.maxLength <= 1);
+        }
+
+        /** The only string the pattern matches, or {@code null} if it matches several. */
+        String getLiteral() {
+            if (tree == null || replacement == null) return null;
+            final String literal = PatternTree.constant(tree.root);
+            return literal == null || literal.isEmpty() ? null : literal;
+        }
+
+        private String getOutput(final String sample) {
+            final Matcher m = pattern.matcher(sample);
+            if (!m.matches()) return null;
+            final StringBuilder output = new StringBuilder();
+            replacement.appendTo(output, sample, m, 0);
+            return output.toString();
+        }
+
+        /**
+         * Returns the replacement shared by both sample matches, or {@code null} when it differs
+         * between them, i.e. when it copies a varying part of the match.
+         */
+        String getConstantOutput(final String sample, final String longer) {
+            final String output = getOutput(sample);
+            return output != null && output.equals(getOutput(longer)) ? output : null;
+        }
+
+        Rule toRule() {
+            return replacement != null
+                    ? new RegexRule(pattern, replacement)
+                    : new LegacyRule(pattern, replacementText);
+        }
+    }
+
+    private static String repeat(final String unit, final int count) {
+        final StringBuilder sb = new StringBuilder(unit.length() * count);
+        for (int i = 0; i < count; i++) sb.append(unit);
+        return sb.toString();
+    }
+
+    private static boolean isUnbordered(final String unit) {
+        for (int border = 1; border < unit.length(); border++) {
+            if (unit.regionMatches(0, unit, unit.length() - border, border)) return false;
+        }
+        return true;
+    }
+
+    private static Rule toLiteralRule(final List<Source> group) {
+        final String[] literals = new String[group.size()];
+        final String[] outputs = new String[group.size()];
+        for (int i = 0; i < literals.length; i++) {
+            final Source source = group.get(i);
+            literals[i] = source.getLiteral();
+            if (literals[i] == null) return null;
+            outputs[i] = source.getConstantOutput(literals[i], literals[i]);
+            if (outputs[i] == null) return null;
+        }
+        return new LiteralRule(literals, outputs);
+    }
+
+    /** Shape {@code X+S}, where {@code X} is a character set and {@code S} a literal. */
+    private static Rule toTrailingRunRule(final Source source) {
+        if (!(source.tree.root instanceof PatternTree.Sequence)) return null;
+        final PatternTree.Node[] items = ((PatternTree.Sequence) source.tree.root).items;
+        if (items.length == 0 || !(items[0] instanceof PatternTree.Repeat)) return null;
+
+        final PatternTree.Repeat run = (PatternTree.Repeat) items[0];
+        if (!(run.body instanceof PatternTree.CharSet) || run.min < 1 || run.max != PatternTree.UNBOUNDED) return null;
+        final BitSet runChars = ((PatternTree.CharSet) run.body).chars;
+
+        final String suffix = PatternTree.constant(new PatternTree.Sequence(Arrays.copyOfRange(items, 1, items.length)));
+        if (suffix == null || suffix.isEmpty() || runChars.get(suffix.charAt(0))) return null;
+
+        final int first = runChars.nextSetBit(0);
+        final int other = runChars.nextSetBit(first + 1);
+        final String output = source.getConstantOutput(
+                repeat(String.valueOf((char) first), run.min) + suffix,
+                repeat(String.valueOf((char) (other == -1 ? first : other)), run.min + 1) + suffix);
+        return output != null ? new TrailingRunRule(runChars, run.min, suffix, output) : null;
+    }
+
+    /** Shape {@code U{j}U{m,}}, where the unit {@code U} is a literal which cannot overlap itself. */
+    private static Rule toRepeatRunRule(final Source source) {
+        final PatternTree.Node root = source.tree.root;
+        final PatternTree.Node[] items = root instanceof PatternTree.Sequence
+                ? ((PatternTree.Sequence) root).items
+                : new PatternTree.Node[] { root };
+        if (items.length == 0 || !(items[items.length - 1] instanceof PatternTree.Repeat)) return null;
+
+        final PatternTree.Repeat run = (PatternTree.Repeat) items[items.length - 1];
+        if (run.max != PatternTree.UNBOUNDED || run.mode == PatternTree.Mode.LAZY) return null;
+        final String unit = PatternTree.constant(run.body);
+        if (unit == null || unit.isEmpty() || !isUnbordered(unit)) return null;
+
+        final String prefix = PatternTree.constant(new PatternTree.Sequence(Arrays.copyOfRange(items, 0, items.length - 1)));
+        if (prefix == null || prefix.length() % unit.length() != 0) return null;
+        final int prefixUnits = prefix.length() / unit.length();
+        if (!prefix.equals(repeat(unit, prefixUnits))) return null;
+
+        final int minUnits = prefixUnits + run.min;
+        if (minUnits < 1) return null;
+        final String output = source.getConstantOutput(repeat(unit, minUnits), repeat(unit, minUnits + 1));
+        return output != null ? new RepeatRunRule(unit, minUnits, output) : null;
+    }
+
+    private static Rule toKernel(final List<Source> group) {
+        final Rule literalRule = toLiteralRule(group);
+        if (literalRule != null || group.size() != 1) return literalRule;
+
+        final Source source = group.get(0);
+        if (source.tree == null || source.replacement == null) return null;
+        final Rule trailingRunRule = toTrailingRunRule(source);
+        return trailingRunRule != null ? trailingRunRule : toRepeatRunRule(source);
+    }
+
+    private static String toLabel(final List<Source> group) {
+        final StringBuilder label = new StringBuilder("rule ").append(group.get(0).number);
+        if (group.size() > 1) label.append('-').append(group.get(group.size() - 1).number);
+        String separator = ": '";
+        for (final Source source : group) {
+            label.append(separator).append(source.pattern.pattern());
+            separator = "', '";
+        }
+        return label.append('\'').toString();
+    }
+
+    private static Pass toPass(final List<Source> group) {
+        final List<Prefilter> prefilters = new ArrayList<Prefilter>(group.size());
+        for (final Source source : group) {
+            prefilters.add(Prefilter.of(source.tree));
+        }
+        return new Pass(toRule(group), Prefilter.any(prefilters), toLabel(group));
+    }
+
+    private static Rule toRule(final List<Source> group) {
+        final Rule kernel = toKernel(group);
+        if (kernel != null) return kernel;
+        if (group.size() == 1) return group.get(0).toRule();
+
+        final List<PatternTree> trees = new ArrayList<PatternTree>(group.size());
+        final List<Pattern> patterns = new ArrayList<Pattern>(group.size());
+        final List<Replacement> replacements = new ArrayList<Replacement>(group.size());
+        for (final Source source : group) {
+            trees.add(source.tree);
+            patterns.add(source.pattern);
+            replacements.add(source.replacement);
+        }
+        return RegexRule.fuse(trees, patterns, replacements);
+    }
+
+    private static boolean canJoin(final List<Source> group, final Source source) {
+        if (group.isEmpty() || !source.isFusable()) return false;
+        for (final Source earlier : group) {
+            if (!earlier.isFusable() || !earlier.isIndependentOf(source)) return false;
+        }
+        return true;
+    }
+
+    public static Pass[] compile(final List<Map.Entry<Pattern, String>> pairs) {
+        final List<Pass> passes = new ArrayList<Pass>();
+        final List<Source> group = new ArrayList<Source>();
+        int sources = 1;
+        for (final Map.Entry<Pattern, String> pair : pairs) {
+            final Source source = new Source(sources++, pair.getKey(), pair.getValue());
+            if (!canJoin(group, source) && !group.isEmpty()) {
+                passes.add(toPass(group));
+                group.clear();
+            }
+            group.add(source);
+        }
+        if (!group.isEmpty()) passes.add(toPass(group));
+
+        return passes.toArray(new Pass[passes.size()]);
+    }
+}
@@ -0,0 +1,52 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import java.util.BitSet;
+
+/**
+ * Kernel removing runs of characters which precede a literal, such as trailing spaces
+ * with {@code ' +(\n)' => '$1'}. The literal does not start with a run character, so a run
+ * is always consumed whole, and runs not followed by the literal are left alone.
+ */
+final class TrailingRunRule implements Rule {
+    private final BitSet runChars;
+    private final int minRun;
+    private final String suffix;
+    private final String output;
+
+    TrailingRunRule(final BitSet runChars, final int minRun, final String suffix, final String output) {
+        this.runChars = runChars;
+        this.minRun = minRun;
+        this.suffix = suffix;
+        this.output = output;
+    }
+
+    @Override
+    public int apply(final CharSequence input, final StringBuilder output) {
+        final int length = input.length();
+        int matches = 0;
+        int last = 0;
+        int cursor = 0;
+        while (cursor < length) {
+            if (!runChars.get(input.charAt(cursor))) {
+                cursor++;
+                continue;
+            }
+
+            final int start = cursor;
+            do {
+                cursor++;
+            } while (cursor < length && runChars.get(input.charAt(cursor)));
+
+            if (cursor - start >= minRun && LiteralRule.matchesAt(input, cursor, suffix)) {
+                output.append(input, last, start).append(this.output);
+                cursor += suffix.length();
+                last = cursor;
+                matches++;
+            }
+        }
+
+        if (matches == 0) return 0;
+        output.append(input, last, length);
+        return matches;
+    }
+}
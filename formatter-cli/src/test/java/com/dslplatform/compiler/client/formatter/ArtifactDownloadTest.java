@@ -0,0 +1,412 @@
+package com.dslplatform.compiler.client.formatter;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.xml.bind.DatatypeConverter;
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.security.MessageDigest;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+public class ArtifactDownloadTest {
+    private static final Logger logger = new Logger() {
+        public void debug(final String format, final Object... params) {}
+        public void info(final String format, final Object... params) {}
+        public void error(final String format, final Object... params) {}
+    };
+
+    private static final Pattern rangePattern = Pattern.compile("bytes=(\\d+)-");
+
+    /** Serves artifacts from memory, optionally cutting responses short or ignoring ranges. */
+    private static class ArtifactServer implements HttpHandler {
+        public final Map<String, byte[]> artifacts = new HashMap<String, byte[]>();
+        public final List<String> ranges = Collections.synchronizedList(new ArrayList<String>());
+        public final AtomicInteger probes = new AtomicInteger();
+        public volatile int truncateAfter = -1;
+        public volatile boolean ignoreRanges;
+
+        @Override
+        public void handle(final HttpExchange exchange) throws IOException {
+            final byte[] body = artifacts.get(exchange.getRequestURI().getPath());
+            if (body == null) {
+                exchange.sendResponseHeaders(404, -1);
+                exchange.close();
+                return;
+            }
+
+            if ("HEAD".equals(exchange.getRequestMethod())) {
+                probes.incrementAndGet();
+                exchange.sendResponseHeaders(200, -1);
+                exchange.close();
+                return;
+            }
+
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            ranges.add(String.valueOf(range));
+
+            int start = 0;
+            final Matcher rangeMatcher = range == null || ignoreRanges ? null : rangePattern.matcher(range);
+            if (rangeMatcher != null && rangeMatcher.matches()) {
+                start = Integer.parseInt(rangeMatcher.group(1));
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + (body.length - 1) + "/" + body.length);
+                exchange.sendResponseHeaders(206, body.length - start);
+            } else {
+                exchange.sendResponseHeaders(200, body.length);
+            }
+
+            final OutputStream os = exchange.getResponseBody();
+            final int cut = truncateAfter;
+            if (cut >= 0 && start < cut) {
+                truncateAfter = -1;
+                os.write(body, start, cut - start);
+                os.flush();
+                exchange.close();
+                return;
+            }
+            os.write(body, start, body.length - start);
+            os.close();
+        }
+    }
+
+    private HttpServer httpServer;
+    private ArtifactServer server;
+    private File cacheDir;
+
+    @Before
+    public void startServer() throws IOException {
+        server = new ArtifactServer();
+        httpServer = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        httpServer.createContext("/", server);
+        httpServer.start();
+
+        cacheDir = File.createTempFile("artifact-download", "");
+        assertTrue(cacheDir.delete());
+        assertTrue(cacheDir.mkdir());
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @After
+    public void stopServer() {
+        httpServer.stop(0);
+        delete(cacheDir);
+    }
+
+    private static byte[] randomBody(final int length) {
+        final byte[] body = new byte[length];
+        new Random(length).nextBytes(body);
+        return body;
+    }
+
+    private static String sha1(final byte[] body) throws Exception {
+        return DatatypeConverter.printHexBinary(MessageDigest.getInstance("SHA-1").digest(body)).toLowerCase(Locale.ENGLISH);
+    }
+
+    private static byte[] read(final File file) throws IOException {
+        final byte[] body = new byte[(int) file.length()];
+        final DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(body);
+        } finally {
+            dis.close();
+        }
+        return body;
+    }
+
+    private static String path(final String artifactId) {
+        return "com/example/" + artifactId + "/1.0/" + artifactId + "-1.0.jar";
+    }
+
+    private Repository httpRepository() throws Exception {
+        return new Repository("Http", new URI("http://127.0.0.1:" + httpServer.getAddress().getPort() + "/"));
+    }
+
+    private static File write(final File file, final byte[] body) throws IOException {
+        assertTrue(file.getParentFile().mkdirs());
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(body);
+        } finally {
+            os.close();
+        }
+        return file;
+    }
+
+    /** Copies the artifact into a local directory repository. */
+    private Repository fileRepository(final String artifactId, final byte[] body) throws IOException {
+        final File directory = new File(cacheDir, "mirror");
+        write(new File(directory, path(artifactId)), body);
+        return new Repository("File", directory.toURI());
+    }
+
+    private ArtifactDownload artifact(
+            final List<Repository> repositories,
+            final String artifactId,
+            final int length,
+            final String hexSha1) {
+        return new ArtifactDownload(
+                logger,
+                new ArtifactManifest(logger, cacheDir, false),
+                new MirrorResolver(logger, cacheDir),
+                new LocalCaches(new File(cacheDir, "m2"), new File(cacheDir, "ivy")),
+                cacheDir,
+                repositories,
+                "com.example",
+                artifactId,
+                "1.0",
+                length,
+                hexSha1);
+    }
+
+    /** Publishes the artifact at the path a repository would serve it from. */
+    private ArtifactDownload publish(final String artifactId, final byte[] body, final String hexSha1) throws Exception {
+        server.artifacts.put("/" + path(artifactId), body);
+        return artifact(Arrays.asList(httpRepository()), artifactId, body.length, hexSha1);
+    }
+
+    private Properties readLatencies() throws IOException {
+        final Properties latencies = new Properties();
+        final InputStream is = new FileInputStream(new File(cacheDir, "mirrors.properties"));
+        try {
+            latencies.load(is);
+        } finally {
+            is.close();
+        }
+        return latencies;
+    }
+
+    /** Waits for the latency of a mirror, which slower probes record after the race is decided. */
+    private String awaitLatency(final Repository repository) throws Exception {
+        for (int i = 0; i < 100; i++) {
+            final File file = new File(cacheDir, "mirrors.properties");
+            if (file.isFile()) {
+                final String latency = readLatencies().getProperty(repository.uri.toString());
+                if (latency != null) return latency;
+            }
+            Thread.sleep(50);
+        }
+        return null;
+    }
+
+    private void writeLatencies(final Properties latencies) throws IOException {
+        final OutputStream os = new FileOutputStream(new File(cacheDir, "mirrors.properties"));
+        try {
+            latencies.store(os, null);
+        } finally {
+            os.close();
+        }
+    }
+
+    @Test
+    public void testDownload() throws Exception {
+        final byte[] body = randomBody(300000);
+        final File jar = publish("whole", body, sha1(body)).getDownload().call();
+
+        assertArrayEquals(body, read(jar));
+        assertEquals(Arrays.asList("null"), server.ranges);
+        assertFalse(new File(jar.getPath() + ".part").exists());
+    }
+
+    @Test
+    public void testResumeInterruptedDownload() throws Exception {
+        final byte[] body = randomBody(300000);
+        server.truncateAfter = 100000;
+        final File jar = publish("resumed", body, sha1(body)).getDownload().call();
+
+        assertArrayEquals(body, read(jar));
+        assertEquals(Arrays.asList("null", "bytes=100000-"), server.ranges);
+    }
+
+    @Test
+    public void testResumeFromPartialFile() throws Exception {
+        final byte[] body = randomBody(300000);
+        final ArtifactDownload download = publish("partial", body, sha1(body));
+
+        final File part = new File(cacheDir, "partial-1.0-[" + sha1(body) + "].jar.part");
+        final OutputStream os = new FileOutputStream(part);
+        try {
+            os.write(body, 0, 12345);
+        } finally {
+            os.close();
+        }
+
+        assertArrayEquals(body, read(download.getDownload().call()));
+        assertEquals(Arrays.asList("bytes=12345-"), server.ranges);
+    }
+
+    @Test
+    public void testLockedPartialFileIsLeftAlone() throws Exception {
+        final byte[] body = randomBody(300000);
+        final ArtifactDownload download = publish("locked", body, sha1(body));
+
+        final File part = new File(cacheDir, "locked-1.0-[" + sha1(body) + "].jar.part");
+        final RandomAccessFile other = new RandomAccessFile(part, "rw");
+        try {
+            other.write(body, 0, 12345);
+            other.getChannel().lock();
+
+            assertArrayEquals(body, read(download.getDownload().call()));
+            assertEquals(Arrays.asList("null"), server.ranges);
+            assertEquals(12345, part.length());
+        } finally {
+            other.close();
+        }
+
+        for (final File file : cacheDir.listFiles()) {
+            assertFalse(file.getName(), file.getName().endsWith(".part") && !file.equals(part));
+        }
+    }
+
+    @Test
+    public void testRestartWhenRangesAreIgnored() throws Exception {
+        final byte[] body = randomBody(300000);
+        server.truncateAfter = 100000;
+        server.ignoreRanges = true;
+
+        assertArrayEquals(body, read(publish("ignored", body, sha1(body)).getDownload().call()));
+    }
+
+    @Test
+    public void testDigestMismatch() throws Exception {
+        final byte[] body = randomBody(1000);
+        final ArtifactDownload download = publish("corrupt", body, sha1(randomBody(999)));
+        try {
+            download.getDownload().call();
+            fail("Expected a digest mismatch");
+        } catch (final IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Digest mismatch"));
+        }
+
+        final File[] files = cacheDir.listFiles();
+        for (final File file : files) {
+            assertFalse(file.getName(), file.getName().startsWith("corrupt-"));
+        }
+    }
+
+    @Test
+    public void testCachedArtifactIsNotDownloadedAgain() throws Exception {
+        final byte[] body = randomBody(5000);
+        final ArtifactDownload download = publish("cached", body, sha1(body));
+        download.getDownload().call();
+        download.getDownload().call();
+
+        assertEquals(1, server.ranges.size());
+    }
+
+    @Test
+    public void testFileRepository() throws Exception {
+        final byte[] body = randomBody(300000);
+        final Repository file = fileRepository("local", body);
+
+        assertArrayEquals(body, read(artifact(Arrays.asList(file), "local", body.length, sha1(body)).getDownload().call()));
+    }
+
+    @Test
+    public void testMirrorWithoutArtifactIsSkipped() throws Exception {
+        final byte[] body = randomBody(5000);
+        final Repository http = httpRepository();
+        final Repository file = fileRepository("missing", body);
+
+        final File jar = artifact(Arrays.asList(http, file), "missing", body.length, sha1(body)).getDownload().call();
+        assertArrayEquals(body, read(jar));
+        assertTrue(server.ranges.isEmpty());
+
+        assertEquals("10000", awaitLatency(http));
+        assertNotNull(awaitLatency(file));
+    }
+
+    @Test
+    public void testCorruptMirrorIsSkipped() throws Exception {
+        final byte[] body = randomBody(5000);
+        final byte[] corrupt = body.clone();
+        corrupt[1234] ^= 1;
+        server.artifacts.put("/" + path("corrupt"), corrupt);
+        final Repository http = httpRepository();
+        final Repository file = fileRepository("corrupt", body);
+
+        assertArrayEquals(body, read(artifact(Arrays.asList(http, file), "corrupt", body.length, sha1(body)).getDownload().call()));
+    }
+
+    @Test
+    public void testFastestKnownMirrorIsProbedFirst() throws Exception {
+        final byte[] body = randomBody(5000);
+        server.artifacts.put("/" + path("known"), body);
+        final Repository http = httpRepository();
+        final Repository file = fileRepository("known", body);
+
+        final Properties latencies = new Properties();
+        latencies.setProperty(http.uri.toString(), "5000");
+        latencies.setProperty(file.uri.toString(), "1");
+        writeLatencies(latencies);
+
+        assertArrayEquals(body, read(artifact(Arrays.asList(http, file), "known", body.length, sha1(body)).getDownload().call()));
+        assertEquals(0, server.probes.get());
+        assertTrue(server.ranges.isEmpty());
+    }
+
+    @Test
+    public void testUnknownMirrorsAreRaced() throws Exception {
+        final byte[] body = randomBody(5000);
+        server.artifacts.put("/" + path("raced"), body);
+        final Repository http = httpRepository();
+        final Repository file = fileRepository("raced", body);
+
+        assertArrayEquals(body, read(artifact(Arrays.asList(http, file), "raced", body.length, sha1(body)).getDownload().call()));
+
+        assertNotNull(awaitLatency(file));
+        assertNotNull(awaitLatency(http));
+        assertEquals(1, server.probes.get());
+    }
+
+    @Test
+    public void testMavenCacheIsUsedInPlace() throws Exception {
+        final byte[] body = randomBody(5000);
+        final File local = write(new File(cacheDir, "m2/" + path("maven")), body);
+
+        final ArtifactDownload download = publish("maven", body, sha1(body));
+        assertEquals(local, download.getDownload().call());
+        assertEquals(local, download.getDownload().call());
+        assertTrue(server.ranges.isEmpty());
+    }
+
+    @Test
+    public void testIvyCacheIsUsedInPlace() throws Exception {
+        final byte[] body = randomBody(5000);
+        final File local = write(new File(cacheDir, "ivy/com.example/ivy/jars/ivy-1.0.jar"), body);
+
+        assertEquals(local, publish("ivy", body, sha1(body)).getDownload().call());
+        assertTrue(server.ranges.isEmpty());
+    }
+
+    @Test
+    public void testLocalCacheWithWrongDigestIsIgnored() throws Exception {
+        final byte[] body = randomBody(5000);
+        final byte[] corrupt = body.clone();
+        corrupt[42] ^= 1;
+        final File local = write(new File(cacheDir, "m2/" + path("stale")), corrupt);
+
+        final File jar = publish("stale", body, sha1(body)).getDownload().call();
+        assertArrayEquals(body, read(jar));
+        assertArrayEquals(corrupt, read(local));
+        assertEquals(1, server.ranges.size());
+    }
+}
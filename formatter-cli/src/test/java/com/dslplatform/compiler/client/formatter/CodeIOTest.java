@@ -0,0 +1,171 @@
+package com.dslplatform.compiler.client.formatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/** Round-trips sources through a file, checking that in-place writes leave exactly the new encoding. */
+public class CodeIOTest {
+    /** Counts the files which were replaced instead of patched. */
+    private final AtomicInteger replaced = new AtomicInteger();
+
+    private final Logger logger = new Logger() {
+        public void debug(final String format, final Object... params) {
+            if (format.startsWith("File was changed since it was read")) replaced.incrementAndGet();
+        }
+        public void info(final String format, final Object... params) {}
+        public void error(final String format, final Object... params) {}
+    };
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File dir;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("code-io", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    private static void writeFile(final File file, final byte[] bytes) throws IOException {
+        final OutputStream os = new FileOutputStream(file);
+        try {
+            os.write(bytes);
+        } finally {
+            os.close();
+        }
+    }
+
+    private static byte[] readFile(final File file) throws IOException {
+        final byte[] bytes = new byte[(int) file.length()];
+        final DataInputStream dis = new DataInputStream(new FileInputStream(file));
+        try {
+            dis.readFully(bytes);
+        } finally {
+            dis.close();
+        }
+        return bytes;
+    }
+
+    private void assertRoundTrip(final Charset charset, final String original, final String body, final CodeIO.WriteMode mode) throws IOException {
+        final CodeIO codeIO = new CodeIO(logger, charset);
+        final File file = new File(dir, "Source.java");
+        writeFile(file, original.getBytes(charset));
+
+        final Code code = codeIO.read(file);
+        assertEquals(original, code.body);
+
+        final Code written = codeIO.write(code, body, mode);
+        assertEquals(body, written.body);
+        assertArrayEquals(body.getBytes(charset), readFile(file));
+        assertEquals(body, codeIO.read(file).body);
+        // an unmodified file is patched, a wrong offset would make it look modified
+        assertEquals(0, replaced.get());
+    }
+
+    private void assertRoundTrip(final String original, final String body) throws IOException {
+        assertRoundTrip(UTF8, original, body, CodeIO.WriteMode.IN_PLACE);
+        assertRoundTrip(UTF8, original, body, CodeIO.WriteMode.ATOMIC);
+    }
+
+    private static String repeat(final String text, final int count) {
+        final StringBuilder sb = new StringBuilder(text.length() * count);
+        for (int i = 0; i < count; i++) sb.append(text);
+        return sb.toString();
+    }
+
+    @Test
+    public void testChangedTail() throws IOException {
+        assertRoundTrip("class A {\n  int x;\n}\n", "class A {\n  int y;\n}\n");
+        assertRoundTrip("class A {}", "class A {}\n");
+    }
+
+    @Test
+    public void testGrowingAndShrinkingFile() throws IOException {
+        assertRoundTrip("class A {\nint x;\n}\n", "class A {\n    int x;\n    int y;\n}\n");
+        assertRoundTrip("class A {\n    int x;\n    int y;\n}\n", "class A {\nint x;\n}\n");
+        assertRoundTrip("class A {}\n", "");
+        assertRoundTrip("", "class A {}\n");
+    }
+
+    @Test
+    public void testMappedFiles() throws IOException {
+        final String big = repeat("int field; // \u00e9\u20ac\n", 100000);
+        assertRoundTrip(big, big + "int last;\n");
+        assertRoundTrip(big + "int last;\n", big.substring(0, big.length() / 2) + "}\n");
+    }
+
+    @Test
+    public void testMultiByteCharactersAtSplitPoint() throws IOException {
+        assertRoundTrip("// h\u00e9llo\n", "// h\u00e8llo\n");
+        assertRoundTrip("// \u20ac1\n", "// \u20ac\u00a31\n");
+        assertRoundTrip("// \u00e9\u00e9\u00e9\n", "// \u00e9\u00e9\n");
+        assertRoundTrip("// a\u00e9", "// a\u00e9\u20ac");
+    }
+
+    @Test
+    public void testSurrogatePairsAtSplitPoint() throws IOException {
+        // the pairs share their high surrogate, so the split falls inside a pair
+        assertRoundTrip("// \ud83d\ude00 x\n", "// \ud83d\ude01 x\n");
+        assertRoundTrip("// \ud83d\ude00\n", "// \ud83d\ude00\ud83d\ude01\n");
+        assertRoundTrip("// \ud83d\ude00\ud83d\ude01\n", "// \ud83d\ude00\n");
+    }
+
+    @Test
+    public void testOtherCharsets() throws IOException {
+        final String[] charsets = { "ISO-8859-1", "UTF-16", "windows-1250" };
+        for (final String name : charsets) {
+            final Charset charset = Charset.forName(name);
+            assertRoundTrip(charset, "class A {\n\u00e9 x;\n}\n", "class A {\n    \u00e9 x;\n}\n", CodeIO.WriteMode.IN_PLACE);
+            assertRoundTrip(charset, "class A {\n    \u00e9 x;\n}\n", "class A {\n\u00e9 x;\n}\n", CodeIO.WriteMode.IN_PLACE);
+        }
+    }
+
+    @Test
+    public void testFileChangedSinceItWasRead() throws IOException {
+        final CodeIO codeIO = new CodeIO(logger, UTF8);
+        final File file = new File(dir, "Source.java");
+
+        // the shared prefix was rewritten
+        writeFile(file, "class A {\nint x;\n}\n".getBytes(UTF8));
+        Code code = codeIO.read(file);
+        writeFile(file, "class B {\nint x;\n}\n// edited\n".getBytes(UTF8));
+        codeIO.write(code, "class A {\n    int x;\n}\n", CodeIO.WriteMode.IN_PLACE);
+        assertArrayEquals("class A {\n    int x;\n}\n".getBytes(UTF8), readFile(file));
+        assertEquals(1, replaced.get());
+
+        // the file was truncated within the shared prefix
+        writeFile(file, "class A {\nint x;\n}\n".getBytes(UTF8));
+        code = codeIO.read(file);
+        writeFile(file, "class".getBytes(UTF8));
+        codeIO.write(code, "class A {\n    int x;\n}\n", CodeIO.WriteMode.IN_PLACE);
+        assertArrayEquals("class A {\n    int x;\n}\n".getBytes(UTF8), readFile(file));
+        assertEquals(2, replaced.get());
+
+        // only the tail was changed, past the shared prefix
+        writeFile(file, "class A {\nint x;\n}\n".getBytes(UTF8));
+        code = codeIO.read(file);
+        writeFile(file, "class A {\nint x;\n}\n\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\u00e9\n".getBytes(UTF8));
+        codeIO.write(code, "class A {\nint x;\n}", CodeIO.WriteMode.IN_PLACE);
+        assertArrayEquals("class A {\nint x;\n}".getBytes(UTF8), readFile(file));
+        assertEquals(2, replaced.get());
+        assertEquals(Arrays.asList("Source.java"), Arrays.asList(dir.list()));
+    }
+}
@@ -0,0 +1,171 @@
+package com.dslplatform.compiler.client.formatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/** Checks exclude globs, and compares the walks against a plain breadth-first walk. */
+public class FileIteratorTest {
+    private static final Pattern SOURCES = Pattern.compile(".*\\.(java|cs)");
+
+    private File root;
+
+    @Before
+    public void createRoot() throws IOException {
+        root = File.createTempFile("file-iterator", "").getCanonicalFile();
+        assertTrue(root.delete());
+        assertTrue(root.mkdir());
+    }
+
+    private static void delete(final File file) {
+        final File[] files = file.listFiles();
+        if (files != null) {
+            for (final File child : files) {
+                delete(child);
+            }
+        }
+        file.delete();
+    }
+
+    @After
+    public void deleteRoot() {
+        delete(root);
+    }
+
+    private void touch(final String path) throws IOException {
+        final File file = new File(root, path);
+        file.getParentFile().mkdirs();
+        assertTrue(file.createNewFile());
+    }
+
+    /** The walk before excludes and prefetching were added: every entry is queued as it is listed. */
+    private static List<File> baselineWalk(final File root, final Pattern pattern) {
+        final List<File> files = new ArrayList<File>();
+        final ArrayDeque<File> queue = new ArrayDeque<File>();
+        queue.add(root);
+        while (!queue.isEmpty()) {
+            final File file = queue.poll();
+            if (file.isFile()) {
+                if (pattern.matcher(file.getPath()).matches()) files.add(file);
+            } else if (file.isDirectory()) {
+                final File[] children = file.listFiles();
+                if (children != null) queue.addAll(Arrays.asList(children));
+            }
+        }
+        return files;
+    }
+
+    private List<File> walk(final List<String> excludes, final ExecutorService executor) {
+        final List<File> files = new ArrayList<File>();
+        for (final File file : new FileIterator(root, SOURCES, excludes, executor)) {
+            files.add(file);
+        }
+        return files;
+    }
+
+    private Set<String> relativePaths(final List<String> excludes) {
+        final Set<String> paths = new TreeSet<String>();
+        for (final File file : walk(excludes, null)) {
+            paths.add(file.getPath().substring(root.getPath().length() + 1).replace(File.separatorChar, '/'));
+        }
+        return paths;
+    }
+
+    private static Set<String> set(final String... values) {
+        return new TreeSet<String>(Arrays.asList(values));
+    }
+
+    @Test
+    public void testGlobs() {
+        assertTrue(FileIterator.globToPattern("**/generated").matcher("generated").matches());
+        assertTrue(FileIterator.globToPattern("**/generated").matcher("a/b/generated").matches());
+        assertFalse(FileIterator.globToPattern("**/generated").matcher("notgenerated").matches());
+        assertTrue(FileIterator.globToPattern("a/**/b").matcher("a/b").matches());
+        assertTrue(FileIterator.globToPattern("a/**/b").matcher("a/x/y/b").matches());
+        assertFalse(FileIterator.globToPattern("a/**/b").matcher("ab").matches());
+        assertTrue(FileIterator.globToPattern("src/**").matcher("src/a/b").matches());
+        assertTrue(FileIterator.globToPattern("*.cs").matcher("A.cs").matches());
+        assertFalse(FileIterator.globToPattern("*.cs").matcher("a/A.cs").matches());
+        assertTrue(FileIterator.globToPattern("?.cs").matcher("A.cs").matches());
+        assertFalse(FileIterator.globToPattern("?.cs").matcher("AB.cs").matches());
+        assertTrue(FileIterator.globToPattern("a+b(c).cs").matcher("a+b(c).cs").matches());
+    }
+
+    @Test
+    public void testDoubleStarMatchesTopLevelDirectory() throws IOException {
+        touch("generated/A.java");
+        touch("src/generated/B.java");
+        touch("src/C.java");
+        assertEquals(set("src/C.java"), relativePaths(Arrays.asList("**/generated")));
+    }
+
+    @Test
+    public void testDoubleStarMatchesNoDirectoriesInTheMiddle() throws IOException {
+        touch("a/b/A.java");
+        touch("a/x/b/B.java");
+        touch("a/C.java");
+        touch("b/D.java");
+        assertEquals(set("a/C.java", "b/D.java"), relativePaths(Arrays.asList("a/**/b")));
+    }
+
+    @Test
+    public void testGlobMatchesNameOrRelativePath() throws IOException {
+        touch("A.java");
+        touch("src/A.java");
+        touch("src/B.java");
+        touch("test/B.java");
+        // without a separator the glob matches the name at any depth
+        assertEquals(set("src/B.java", "test/B.java"), relativePaths(Arrays.asList("A.java")));
+        // with one it is matched against the path relative to the root
+        assertEquals(set("A.java", "src/B.java", "test/B.java"), relativePaths(Arrays.asList("src/A.java")));
+        assertEquals(set("A.java", "test/B.java"), relativePaths(Arrays.asList("src")));
+    }
+
+    @Test
+    public void testDefaultExcludesArePruned() throws IOException {
+        touch("A.java");
+        touch(".git/objects/B.java");
+        touch("src/.svn/C.java");
+        touch("web/node_modules/lib/D.cs");
+        touch("web/E.cs");
+        touch("gitignored/.hg/F.java");
+        assertEquals(set("A.java", "web/E.cs"), relativePaths(FileIterator.DEFAULT_EXCLUDES));
+        assertEquals(6, relativePaths(Collections.<String>emptyList()).size());
+    }
+
+    @Test
+    public void testWalksMatchBaselineOrder() throws IOException {
+        // more directories than listings prefetched at once
+        final Random random = new Random(7);
+        for (int i = 0; i < 300; i++) {
+            final StringBuilder path = new StringBuilder();
+            final int depth = random.nextInt(4);
+            for (int d = 0; d < depth; d++) path.append("d").append(random.nextInt(30)).append('/');
+            path.append("F").append(i).append(random.nextBoolean() ? ".java" : random.nextBoolean() ? ".cs" : ".txt");
+            touch(path.toString());
+        }
+        new File(root, "empty/dir").mkdirs();
+
+        final List<File> baseline = baselineWalk(root, SOURCES);
+        assertFalse(baseline.isEmpty());
+        assertEquals(baseline, walk(Collections.<String>emptyList(), null));
+
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (int run = 0; run < 5; run++) {
+                assertEquals(baseline, walk(Collections.<String>emptyList(), executor));
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.dslplatform.compiler.client.formatter;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class FormatMemoTest {
+    private static byte[] digest(final int value) {
+        return new byte[] { (byte) value };
+    }
+
+    @Test
+    public void testOutputIsKeyedByLanguageAndDigest() {
+        final FormatMemo memo = new FormatMemo(1024);
+        memo.put("java", digest(1), "formatted");
+
+        assertEquals("formatted", memo.get("java", digest(1)));
+        assertNull(memo.get("scala", digest(1)));
+        assertNull(memo.get("java", digest(2)));
+        assertEquals(1, memo.getHits());
+        assertEquals(2, memo.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() {
+        // each output takes 40 bytes, so only two of them fit
+        final FormatMemo memo = new FormatMemo(100);
+        memo.put("java", digest(1), "01234567890123456789");
+        memo.put("java", digest(2), "01234567890123456789");
+        assertNotNull(memo.get("java", digest(1)));
+
+        memo.put("java", digest(3), "01234567890123456789");
+        assertNotNull(memo.get("java", digest(1)));
+        assertNull(memo.get("java", digest(2)));
+        assertNotNull(memo.get("java", digest(3)));
+    }
+
+    @Test
+    public void testOutputLargerThanTheBoundIsNotKept() {
+        final FormatMemo memo = new FormatMemo(10);
+        memo.put("java", digest(1), "0123456789");
+        assertNull(memo.get("java", digest(1)));
+    }
+}
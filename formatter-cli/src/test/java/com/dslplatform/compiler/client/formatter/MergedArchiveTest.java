@@ -0,0 +1,219 @@
+package com.dslplatform.compiler.client.formatter;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.*;
+import java.net.URL;
+import java.util.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.Assert.*;
+
+/** Merges small jars and checks the merge rules, the reuse of merged archives and class loading. */
+public class MergedArchiveTest {
+    private static final Logger logger = new Logger() {
+        public void debug(final String format, final Object... params) {}
+        public void info(final String format, final Object... params) {}
+        public void error(final String format, final Object... params) {}
+    };
+
+    /** Loaded from the merged archive, so it must not depend on anything but the JDK. */
+    public static class Probe {
+        @Override
+        public String toString() {
+            return "probe";
+        }
+    }
+
+    private static final String PROBE = Probe.class.getName().replace('.', '/') + ".class";
+    private static final String SERVICE = "META-INF/services/com.example.Service";
+
+    private File dir;
+    private ArtifactManifest manifest;
+
+    @Before
+    public void createDir() throws IOException {
+        dir = File.createTempFile("merged-archive", "");
+        assertTrue(dir.delete());
+        assertTrue(dir.mkdir());
+        manifest = new ArtifactManifest(logger, dir, false);
+    }
+
+    @After
+    public void deleteDir() {
+        final File[] files = dir.listFiles();
+        if (files != null) {
+            for (final File file : files) file.delete();
+        }
+        dir.delete();
+    }
+
+    private static byte[] utf8(final String text) throws UnsupportedEncodingException {
+        return text.getBytes("UTF-8");
+    }
+
+    private static byte[] readFully(final InputStream is) throws IOException {
+        try {
+            final ByteArrayOutputStream body = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            while (true) {
+                final int read = is.read(buffer);
+                if (read == -1) return body.toByteArray();
+                body.write(buffer, 0, read);
+            }
+        } finally {
+            is.close();
+        }
+    }
+
+    private File jar(final String name, final Map<String, byte[]> entries) throws IOException {
+        final File jar = new File(dir, name);
+        final ZipOutputStream zos = new ZipOutputStream(new FileOutputStream(jar));
+        try {
+            for (final Map.Entry<String, byte[]> entry : entries.entrySet()) {
+                zos.putNextEntry(new ZipEntry(entry.getKey()));
+                zos.write(entry.getValue());
+                zos.closeEntry();
+            }
+        } finally {
+            zos.close();
+        }
+        return jar;
+    }
+
+    private List<File> jars() throws IOException {
+        final Map<String, byte[]> first = new LinkedHashMap<String, byte[]>();
+        first.put("META-INF/MANIFEST.MF", utf8("Manifest-Version: 1.0\n"));
+        first.put("META-INF/FIRST.SF", utf8("signature"));
+        first.put("META-INF/FIRST.RSA", utf8("signature"));
+        first.put(SERVICE, utf8("com.example.First"));
+        first.put("shared.txt", utf8("first"));
+        first.put(PROBE, readFully(getClass().getClassLoader().getResourceAsStream(PROBE)));
+
+        final Map<String, byte[]> second = new LinkedHashMap<String, byte[]>();
+        second.put("META-INF/MANIFEST.MF", utf8("Manifest-Version: 1.0\nCreated-By: second\n"));
+        second.put("META-INF/second.dsa", utf8("signature"));
+        second.put("META-INF/maven/com.example/second/pom.properties", utf8("version=1.0"));
+        second.put(SERVICE, utf8("com.example.Second"));
+        second.put("shared.txt", utf8("second"));
+        second.put("second.txt", utf8("only in second"));
+
+        return Arrays.asList(jar("first.jar", first), jar("second.jar", second));
+    }
+
+    private static Map<String, String> read(final File archive) throws IOException {
+        final Map<String, String> entries = new HashMap<String, String>();
+        final ZipFile zip = new ZipFile(archive);
+        try {
+            final Enumeration<? extends ZipEntry> e = zip.entries();
+            while (e.hasMoreElements()) {
+                final ZipEntry entry = e.nextElement();
+                assertFalse("Duplicate entry " + entry.getName(), entries.containsKey(entry.getName()));
+                entries.put(entry.getName(), new String(readFully(zip.getInputStream(entry)), "UTF-8"));
+            }
+        } finally {
+            zip.close();
+        }
+        return entries;
+    }
+
+    @Test
+    public void testMergeRules() throws IOException {
+        final File target = new File(dir, "merged.jar");
+        MergedArchive.merge(logger, manifest, target, jars());
+        final Map<String, String> entries = read(target);
+
+        // the first jar wins
+        assertEquals("first", entries.get("shared.txt"));
+        assertEquals("Manifest-Version: 1.0\n", entries.get("META-INF/MANIFEST.MF"));
+        assertEquals("only in second", entries.get("second.txt"));
+        // services are concatenated in class path order
+        assertEquals("com.example.First\ncom.example.Second\n", entries.get(SERVICE));
+        // top-level signatures are dropped, other metadata is kept
+        assertFalse(entries.containsKey("META-INF/FIRST.SF"));
+        assertFalse(entries.containsKey("META-INF/FIRST.RSA"));
+        assertFalse(entries.containsKey("META-INF/second.dsa"));
+        assertEquals("version=1.0", entries.get("META-INF/maven/com.example/second/pom.properties"));
+        assertTrue(entries.containsKey(PROBE));
+    }
+
+    @Test
+    public void testArchiveIsNamedInClassPathOrder() {
+        final String a = "0123456789012345678901234567890123456789";
+        final String b = "9876543210987654321098765432109876543210";
+        assertEquals(MergedArchive.getFile(dir, Arrays.asList(a, b)), MergedArchive.getFile(dir, Arrays.asList(a, b)));
+        assertFalse(MergedArchive.getFile(dir, Arrays.asList(a, b)).equals(MergedArchive.getFile(dir, Arrays.asList(b, a))));
+    }
+
+    @Test
+    public void testUnchangedArchiveIsReused() throws IOException {
+        final File target = new File(dir, "merged.jar");
+        final List<File> jars = jars();
+        MergedArchive.merge(logger, manifest, target, jars);
+
+        // merging again would fail on the missing jars
+        for (final File jar : jars) assertTrue(jar.delete());
+        assertEquals(target, MergedArchive.merge(logger, new ArtifactManifest(logger, dir, false), target, jars));
+        assertEquals("first", read(target).get("shared.txt"));
+    }
+
+    @Test
+    public void testChangedArchiveIsRebuilt() throws IOException {
+        final File target = new File(dir, "merged.jar");
+        final List<File> jars = jars();
+        MergedArchive.merge(logger, manifest, target, jars);
+
+        final Map<String, byte[]> tampered = new HashMap<String, byte[]>();
+        tampered.put("shared.txt", utf8("tampered with"));
+        jar("merged.jar", tampered);
+
+        MergedArchive.merge(logger, new ArtifactManifest(logger, dir, false), target, jars);
+        assertEquals("first", read(target).get("shared.txt"));
+        assertEquals("com.example.First\ncom.example.Second\n", read(target).get(SERVICE));
+    }
+
+    @Test
+    public void testArchiveWithoutRecordIsRebuilt() throws IOException {
+        final File target = new File(dir, "merged.jar");
+        final Map<String, byte[]> stale = new HashMap<String, byte[]>();
+        stale.put("shared.txt", utf8("stale"));
+        jar("merged.jar", stale);
+
+        MergedArchive.merge(logger, manifest, target, jars());
+        assertEquals("first", read(target).get("shared.txt"));
+        assertNotNull(manifest.getRecordedSha1(target));
+    }
+
+    @Test
+    public void testClassesAndResourcesResolveThroughIndexedClassLoader() throws Exception {
+        final File target = new File(dir, "merged.jar");
+        MergedArchive.merge(logger, manifest, target, jars());
+
+        // a parent which cannot see the test classes
+        final IndexedClassLoader loader = new IndexedClassLoader(target, ClassLoader.getSystemClassLoader().getParent());
+        final Class<?> probe = loader.loadClass(Probe.class.getName());
+        assertSame(loader, probe.getClassLoader());
+        assertNotSame(Probe.class, probe);
+        assertSame(probe, loader.loadClass(Probe.class.getName()));
+        assertEquals("probe", probe.getConstructor().newInstance().toString());
+        assertSame(String.class, loader.loadClass("java.lang.String"));
+
+        try {
+            loader.loadClass("com.example.Missing");
+            fail("Missing class was loaded");
+        } catch (final ClassNotFoundException e) {
+            // expected
+        }
+
+        assertEquals("first", new String(readFully(loader.getResourceAsStream("shared.txt")), "UTF-8"));
+        final List<URL> services = Collections.list(loader.getResources(SERVICE));
+        assertEquals(1, services.size());
+        assertEquals("com.example.First\ncom.example.Second\n", new String(readFully(services.get(0).openStream()), "UTF-8"));
+        assertNull(loader.getResource("META-INF/FIRST.SF"));
+        assertNull(loader.getResource("missing.txt"));
+    }
+}
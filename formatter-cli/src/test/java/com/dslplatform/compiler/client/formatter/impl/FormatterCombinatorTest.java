@@ -0,0 +1,51 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.Logger;
+import com.dslplatform.compiler.client.formatter.TextBuffer;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/** Checks that a failing stage is skipped and reported on the buffer. */
+public class FormatterCombinatorTest {
+    private static final Logger logger = new Logger() {
+        public void debug(final String format, final Object... params) {}
+        public void info(final String format, final Object... params) {}
+        public void error(final String format, final Object... params) {}
+    };
+
+    private static final Formatter UPPER = new Formatter() {
+        @Override
+        public String format(final String context, final String body) {
+            return body.toUpperCase();
+        }
+    };
+
+    private static final Formatter FAILING = new Formatter() {
+        @Override
+        public String format(final String context, final String body) {
+            throw new IllegalStateException("broken");
+        }
+    };
+
+    @Test
+    public void testAllStagesSucceed() {
+        final FormatterCombinator combinator = new FormatterCombinator(logger,
+                FormatterCombinator.adapt(UPPER), FormatterCombinator.adapt(UPPER));
+        final TextBuffer buffer = new TextBuffer("abc");
+        assertTrue(combinator.format("test", buffer));
+        assertEquals("ABC", buffer.toString());
+        assertFalse(buffer.hasFailed());
+    }
+
+    @Test
+    public void testFailedStageIsSkippedAndReported() {
+        final FormatterCombinator combinator = new FormatterCombinator(logger,
+                FormatterCombinator.adapt(FAILING), FormatterCombinator.adapt(UPPER));
+        final TextBuffer buffer = new TextBuffer("abc");
+        assertTrue(combinator.format("test", buffer));
+        assertEquals("ABC", buffer.toString());
+        assertTrue(buffer.hasFailed());
+    }
+}
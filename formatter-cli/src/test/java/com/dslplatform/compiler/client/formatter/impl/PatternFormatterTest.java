@@ -0,0 +1,235 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.Logger;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.*;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.*;
+
+/** Compares the compiled rules against running every rule in its own regex pass. */
+public class PatternFormatterTest {
+    private static final Logger logger = new Logger() {
+        public void debug(final String format, final Object... params) {}
+        public void info(final String format, final Object... params) {}
+        public void error(final String format, final Object... params) {}
+    };
+
+    private static final String ALPHABET = " \t\r\n{}(),ab*/$\\\u00e9";
+
+    private static Map.Entry<Pattern, String> rule(final String regex, final String replacement) {
+        return new AbstractMap.SimpleEntry<Pattern, String>(Pattern.compile(regex), replacement);
+    }
+
+    private static String sequential(final List<Map.Entry<Pattern, String>> rules, final String text) {
+        String work = text;
+        for (final Map.Entry<Pattern, String> rule : rules) {
+            final Matcher m = rule.getKey().matcher(work);
+            if (m.find()) {
+                final StringBuffer sb = new StringBuffer();
+                do {
+                    m.appendReplacement(sb, rule.getValue());
+                } while (m.find());
+                work = m.appendTail(sb).toString();
+            }
+        }
+        return work;
+    }
+
+    private static String escape(final String text) {
+        return text.replace("\r", "\\r").replace("\n", "\\n").replace("\t", "\\t");
+    }
+
+    private static void assertIdentical(final List<Map.Entry<Pattern, String>> rules, final String alphabet, final int samples) {
+        final Formatter formatter = PatternFormatter.fromEntries(logger, rules);
+        final Random random = new Random(samples);
+        final StringBuilder sb = new StringBuilder();
+        for (int sample = 0; sample < samples; sample++) {
+            sb.setLength(0);
+            final int length = random.nextInt(80);
+            for (int i = 0; i < length; i++) {
+                sb.append(alphabet.charAt(random.nextInt(alphabet.length())));
+            }
+
+            final String text = sb.toString();
+            final String expected = sequential(rules, text);
+            final String actual = formatter.format("test", text);
+            if (!expected.equals(actual)) {
+                fail("Formatting \"" + escape(text) + "\" gave \"" + escape(actual) + "\" instead of \"" + escape(expected) + "\"");
+            }
+        }
+    }
+
+    private static void assertIdentical(final Map.Entry<Pattern, String> rule) {
+        assertIdentical(Collections.singletonList(rule), ALPHABET, 5000);
+    }
+
+    private static List<Map.Entry<Pattern, String>> readRules(final String name) throws IOException {
+        final InputStream is = PatternFormatter.class.getResourceAsStream("/com/dslplatform/compiler/client/formatter/defaults/" + name);
+        assertNotNull(name, is);
+
+        final List<Map.Entry<Pattern, String>> rules = new ArrayList<Map.Entry<Pattern, String>>();
+        final BufferedReader br = new BufferedReader(new InputStreamReader(is, "UTF-8"));
+        try {
+            while (true) {
+                final String line = br.readLine();
+                if (line == null) return rules;
+
+                final String trimmed = line.trim();
+                if (trimmed.isEmpty()) continue;
+                final String[] pair = trimmed.substring(1, trimmed.length() - 1).split("'\\s*=>\\s*'", -1);
+                rules.add(rule(pair[0], pair[1].replace("\\n", "\n").replace("\\r", "\r").replace("\\t", "\t")));
+            }
+        } finally {
+            br.close();
+        }
+    }
+
+    private static Class<?> compiled(final String regex, final String replacement) {
+        final Pass[] passes = RuleCompiler.compile(Collections.singletonList(rule(regex, replacement)));
+        assertEquals(1, passes.length);
+        return passes[0].rule.getClass();
+    }
+
+    @Test
+    public void testShippedRules() throws IOException {
+        for (final String language : new String[] { "csharp", "java", "php", "scala", "sql" }) {
+            assertIdentical(readRules(language + "-clean.regex"), ALPHABET, 20000);
+        }
+    }
+
+    @Test
+    public void testKernelShapes() {
+        assertEquals(LiteralRule.class, compiled("\\r", ""));
+        assertEquals(LiteralRule.class, compiled("\\t", "    "));
+        assertEquals(LiteralRule.class, compiled("/\\*", "$0$0"));
+        assertEquals(TrailingRunRule.class, compiled(" +(\\n)", "$1"));
+        assertEquals(TrailingRunRule.class, compiled("[ \\t]+(\\r\\n)", "$1"));
+        assertEquals(RepeatRunRule.class, compiled("(\\n\\n)\\n+", "$1"));
+        assertEquals(RepeatRunRule.class, compiled("(\\r\\n){2}(?:\\r\\n)+", "$1$1"));
+
+        // a varying part of the match is copied, the unit overlaps itself, or the run is lazy
+        assertEquals(RegexRule.class, compiled("( +)(\\n)", "$2$1"));
+        assertEquals(RegexRule.class, compiled("(\\n)\\n+", "$0"));
+        assertEquals(RegexRule.class, compiled("(?:aba){2,}", "-"));
+        assertEquals(RegexRule.class, compiled("(\\n\\n)\\n+?", "$1"));
+        assertEquals(LegacyRule.class, compiled("\\r", "$x"));
+    }
+
+    @Test
+    public void testKernelsMatchRegexEngine() {
+        assertIdentical(rule("\\r", ""));
+        assertIdentical(rule("\\t", "    "));
+        assertIdentical(rule("\\*/", "$0\\$"));
+        assertIdentical(rule("\\{\\}", "{ }"));
+        assertIdentical(rule(" +(\\n)", "$1"));
+        assertIdentical(rule(" +?(\\n)", "$1"));
+        assertIdentical(rule(" {2,}(\\n)", "<$1>"));
+        assertIdentical(rule("[ \\t]+(\\r\\n)", "$1"));
+        assertIdentical(rule("[ \\t]+(\\n )", "$1"));
+        assertIdentical(rule("(\\n\\n)\\n+", "$1"));
+        assertIdentical(rule("\\n{3,}", "\\n\\n"));
+        assertIdentical(rule("\\n*", "-"));
+        assertIdentical(rule("(\\r\\n){2}(?:\\r\\n)+", "$1$1"));
+        assertIdentical(rule("(\\{\\})+", "$1"));
+        assertIdentical(rule("(aa)a+", "$1"));
+        assertIdentical(rule("(?:aba){2,}", "-"));
+        assertIdentical(rule("\u00e9+", "e"));
+    }
+
+    private static boolean accepts(final String regex, final String text) {
+        return Prefilter.of(PatternTree.parse(regex)).accepts(Census.of(text));
+    }
+
+    @Test
+    public void testPrefilter() {
+        assertTrue(accepts(" +(\\n)", "a  \nb"));
+        assertFalse(accepts(" +(\\n)", "a\n b"));
+        assertTrue(accepts("(\\n\\n)\\n+", "a\n\nb"));
+        assertFalse(accepts("(\\n\\n)\\n+", "a\nb\n"));
+        assertTrue(accepts("\\{\\s+?\\}", "{ \n}"));
+        assertFalse(accepts("\\{\\s+?\\}", "{a"));
+        assertTrue(accepts("ab|cd", "xcdx"));
+        assertFalse(accepts("ab|cd", "xbdx"));
+        assertTrue(accepts("\u00e9", "caf\u00e9"));
+        assertFalse(accepts("\u00e9", "cafe"));
+        assertTrue(Prefilter.of(PatternTree.parse("a*")).isAlways());
+        assertTrue(Prefilter.of(PatternTree.parse("^a")).isAlways());
+    }
+
+    @Test
+    public void testFusedRules() {
+        final List<Map.Entry<Pattern, String>> rules = Arrays.asList(
+                rule("\\r", ""),
+                rule("\\t", "    "),
+                rule("a", "b$0"),
+                rule("[{}]", "\\$"),
+                rule("/(\\*)", "$1$1"),
+                rule("\\(", ""),
+                rule(" ", "_"),
+                rule("\\n+", "\n"),
+                rule("x{2,3}?", "y"),
+                rule("b|c", "Q"));
+        assertTrue(RuleCompiler.compile(rules).length < rules.size());
+        assertIdentical(rules, " \t\r\nabcx{}()/*", 20000);
+    }
+
+    @Test
+    public void testInvalidReplacementFailsOnMatch() {
+        final Formatter formatter = PatternFormatter.fromEntries(logger, Collections.singletonList(rule("\\r", "$x")));
+        assertEquals("clean", formatter.format("test", "clean"));
+        try {
+            formatter.format("test", "dirty\r");
+            fail("Expected an illegal group reference");
+        } catch (final IllegalArgumentException e) {
+            // same as Matcher.appendReplacement
+        }
+    }
+
+    @Test
+    public void testFailedStageLeavesBufferUnchanged() {
+        final Formatter formatter = new FormatterCombinator(logger,
+                FormatterCombinator.adapt(PatternFormatter.fromEntries(logger, Arrays.asList(
+                        rule("a", "b"),
+                        rule("b", "c"),
+                        rule("\\r", "$x")))),
+                new NewlineTrimFormatter(logger, "\n"));
+        assertEquals("c\n", formatter.format("test", "a"));
+        assertEquals("a\r\n", formatter.format("test", "\n\na\r\n\n"));
+    }
+
+    @Test
+    public void testProfilerReportsRules() {
+        final Profiler profiler = new Profiler();
+        final Formatter formatter = new FormatterCombinator(logger, profiler.profile("test clean", FormatterCombinator.adapt(
+                PatternFormatter.fromEntries(logger, profiler, "test-clean.regex", Arrays.asList(
+                        rule(" +(\\n)", "$1"),
+                        rule("\\{\\s+\\}", "{}"))))));
+        formatter.format("test", "ignored  \n");
+
+        profiler.start();
+        formatter.format("test", "a  \nb");
+        formatter.format("test", "{ }");
+        profiler.stop();
+
+        final List<String> report = new ArrayList<String>();
+        profiler.report(new Logger() {
+            public void debug(final String format, final Object... params) {}
+            public void info(final String format, final Object... params) {
+                report.add(params[0] + ": " + params[2] + " calls, " + params[3] + " skipped, " + params[4] + " matched");
+            }
+            public void error(final String format, final Object... params) {}
+        });
+
+        assertTrue(report.contains("test clean: 2 calls, 0 skipped, 2 matched"));
+        assertTrue(report.contains("test-clean.regex rule 1: ' +(\\n)': 1 calls, 1 skipped, 1 matched"));
+        assertTrue(report.contains("test-clean.regex rule 2: '\\{\\s+\\}': 1 calls, 1 skipped, 1 matched"));
+    }
+}
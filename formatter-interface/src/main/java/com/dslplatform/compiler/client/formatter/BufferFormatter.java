@@ -0,0 +1,14 @@
+package com.dslplatform.compiler.client.formatter;
+
+/**
+ * Formatter which rewrites a shared {@link TextBuffer} instead of returning a new string,
+ * so that a pipeline of formatters does not allocate a string for every stage.
+ */
+public interface BufferFormatter {
+    /**
+     * Formats the text in the buffer. The buffer must be left as it was when an exception is thrown.
+     *
+     * @return {@code false} if the text was not changed
+     */
+    public boolean format(final String context, final TextBuffer buffer);
+}
@@ -0,0 +1,100 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Applies the replacements computed by a code formatter in a single pass over the text.
+ * The edits are collected into flat offset arrays, sorted by offset (keeping the order in
+ * which they were added for edits at the same offset) and copied into a presized builder,
+ * so thousands of small whitespace edits do not shift the text once per edit.
+ */
+public final class EditApplier {
+    private int[] offsets = new int[64];
+    private int[] lengths = new int[64];
+    private String[] replacements = new String[64];
+    private int count;
+
+    /** Replaces the characters from the offset up to offset + length with the replacement. */
+    public void add(final int offset, final int length, final String replacement) {
+        if (count == offsets.length) {
+            offsets = Arrays.copyOf(offsets, count * 2);
+            lengths = Arrays.copyOf(lengths, count * 2);
+            replacements = Arrays.copyOf(replacements, count * 2);
+        }
+        offsets[count] = offset;
+        lengths[count] = length;
+        replacements[count] = replacement;
+        count++;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public void clear() {
+        Arrays.fill(replacements, 0, count, null);
+        count = 0;
+    }
+
+    private boolean isSorted() {
+        for (int i = 1; i < count; i++) {
+            if (offsets[i] < offsets[i - 1]) return false;
+        }
+        return true;
+    }
+
+    private Integer[] sortedOrder() {
+        final Integer[] order = new Integer[count];
+        for (int i = 0; i < count; i++) order[i] = i;
+        // object sorts are stable, so edits at the same offset stay in order
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(final Integer left, final Integer right) {
+                final int l = offsets[left];
+                final int r = offsets[right];
+                return l < r ? -1 : l > r ? 1 : 0;
+            }
+        });
+        return order;
+    }
+
+    /**
+     * Returns the text with the edits applied, or the text itself when every edit replaces
+     * characters with the same ones, in which case no new string is built.
+     *
+     * @throws IllegalArgumentException if an edit lies outside the text or overlaps another one
+     */
+    public String apply(final String text) {
+        final Integer[] order = isSorted() ? null : sortedOrder();
+
+        boolean effective = false;
+        long length = text.length();
+        int end = 0;
+        for (int i = 0; i < count; i++) {
+            final int edit = order != null ? order[i] : i;
+            final int offset = offsets[edit];
+            if (offset < end || lengths[edit] < 0 || offset + lengths[edit] > text.length()) {
+                throw new IllegalArgumentException("Edit at " + offset + " of length " + lengths[edit]
+                        + " overlaps a previous edit or lies outside the text of length " + text.length());
+            }
+            end = offset + lengths[edit];
+            length += replacements[edit].length() - lengths[edit];
+
+            if (!effective && (replacements[edit].length() != lengths[edit]
+                    || !text.regionMatches(offset, replacements[edit], 0, lengths[edit]))) {
+                effective = true;
+            }
+        }
+        if (!effective) return text;
+
+        final StringBuilder sb = new StringBuilder((int) length);
+        int copied = 0;
+        for (int i = 0; i < count; i++) {
+            final int edit = order != null ? order[i] : i;
+            sb.append(text, copied, offsets[edit]).append(replacements[edit]);
+            copied = offsets[edit] + lengths[edit];
+        }
+        return sb.append(text, copied, text.length()).toString();
+    }
+}
@@ -0,0 +1,21 @@
+package com.dslplatform.compiler.client.formatter;
+
+import java.util.Properties;
+
+/**
+ * Creates the formatters of a language. Implementations are discovered through
+ * {@link java.util.ServiceLoader}, so a language module registers its provider in
+ * {@code META-INF/services/com.dslplatform.compiler.client.formatter.FormatterProvider}.
+ */
+public interface FormatterProvider {
+    /** Lower case file extensions handled by this provider, without the leading dot. */
+    public String[] getExtensions();
+
+    /**
+     * Whether a single formatter can be used from several threads at once.
+     * Formatters which are not thread-safe are pooled, one instance per concurrent caller.
+     */
+    public boolean isThreadSafe();
+
+    public Formatter createFormatter(final Logger logger, final Properties properties);
+}
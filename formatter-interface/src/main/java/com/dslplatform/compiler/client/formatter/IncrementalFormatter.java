@@ -0,0 +1,13 @@
+package com.dslplatform.compiler.client.formatter;
+
+/**
+ * Formatter which can restrict itself to the parts of a source which changed since the
+ * source was last formatted. The result must be the same as formatting the whole source.
+ */
+public interface IncrementalFormatter extends Formatter {
+    /**
+     * @param previous formatted output of the previous version of the source, or {@code null}
+     *                 if it is not known, in which case the whole source is formatted
+     */
+    public String format(final String context, final String code, final String previous);
+}
@@ -0,0 +1,81 @@
+package com.dslplatform.compiler.client.formatter;
+
+/**
+ * Text passed between the stages of a {@link BufferFormatter} pipeline. The text is rewritten
+ * into a spare builder, which then takes its place, so two builders are enough for any number
+ * of rewrites. A string is only created when one is asked for.
+ */
+public final class TextBuffer {
+    private CharSequence text;
+    private StringBuilder spare;
+    /** The text as a string, if it was already created. */
+    private String string;
+    private final String previous;
+    private boolean failed;
+
+    public TextBuffer(final String text) {
+        this(text, null);
+    }
+
+    /** Creates a buffer for a source whose previous version was formatted into the provided text. */
+    public TextBuffer(final String text, final String previous) {
+        this.text = text;
+        this.string = text;
+        this.previous = previous;
+    }
+
+    /** Formatted output of the previous version of the source, or {@code null} if it is not known. */
+    public String getPrevious() {
+        return previous;
+    }
+
+    /** Records that a stage failed, so the text is not a complete formatting of the source. */
+    public void fail() {
+        failed = true;
+    }
+
+    /** Whether any stage failed and was skipped. Such output should not be cached. */
+    public boolean hasFailed() {
+        return failed;
+    }
+
+    /** The current text, valid until the next {@link #commit} or {@link #set}. */
+    public CharSequence getText() {
+        return text;
+    }
+
+    public int length() {
+        return text.length();
+    }
+
+    /** Returns an empty builder for the rewritten text, which becomes the text on {@link #commit}. */
+    public StringBuilder edit() {
+        if (spare == null) {
+            spare = new StringBuilder(text.length() + 16);
+        } else {
+            spare.setLength(0);
+        }
+        return spare;
+    }
+
+    /** Replaces the text with the builder returned by the last {@link #edit}. */
+    public void commit() {
+        final StringBuilder edited = spare;
+        spare = text instanceof StringBuilder ? (StringBuilder) text : null;
+        text = edited;
+        string = null;
+    }
+
+    /** Replaces the text with a string, such as the output of a {@link Formatter}. */
+    public void set(final String text) {
+        if (this.text instanceof StringBuilder) spare = (StringBuilder) this.text;
+        this.text = text;
+        this.string = text;
+    }
+
+    @Override
+    public String toString() {
+        if (string == null) string = text.toString();
+        return string;
+    }
+}
@@ -0,0 +1,127 @@
+package com.dslplatform.compiler.client.formatter;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/** Compares the single pass against applying the edits one by one, from the last to the first. */
+public class EditApplierTest {
+    private static final String ALPHABET = " \t\n{}();ab";
+
+    private static String randomText(final Random random, final int length) {
+        final StringBuilder sb = new StringBuilder(length);
+        for (int i = 0; i < length; i++) sb.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+        return sb.toString();
+    }
+
+    @Test
+    public void testRandomEditsMatchSequentialApplication() {
+        final Random random = new Random(42);
+        final EditApplier applier = new EditApplier();
+
+        for (int run = 0; run < 2000; run++) {
+            final String text = randomText(random, random.nextInt(200));
+
+            // non-overlapping edits in ascending order, each one possibly empty or an insertion
+            final List<int[]> edits = new ArrayList<int[]>();
+            final List<String> replacements = new ArrayList<String>();
+            int position = 0;
+            while (position <= text.length() && random.nextInt(8) != 0) {
+                final int offset = position + random.nextInt(text.length() - position + 1);
+                final int length = random.nextInt(Math.min(4, text.length() - offset) + 1);
+                edits.add(new int[] { offset, length });
+                replacements.add(randomText(random, random.nextInt(4)));
+                // an insertion may share its offset with the next edit
+                position = length == 0 ? offset : offset + length;
+                if (length == 0 && random.nextBoolean()) position++;
+            }
+
+            String expected = text;
+            for (int i = edits.size() - 1; i >= 0; i--) {
+                final int[] edit = edits.get(i);
+                expected = expected.substring(0, edit[0]) + replacements.get(i) + expected.substring(edit[0] + edit[1]);
+            }
+
+            // edits at distinct offsets may be added in any order
+            boolean distinct = true;
+            for (int i = 1; i < edits.size(); i++) {
+                if (edits.get(i)[0] == edits.get(i - 1)[0]) distinct = false;
+            }
+            final List<Integer> order = new ArrayList<Integer>();
+            for (int i = 0; i < edits.size(); i++) order.add(i);
+            if (distinct && random.nextBoolean()) Collections.shuffle(order, random);
+
+            applier.clear();
+            for (final int i : order) applier.add(edits.get(i)[0], edits.get(i)[1], replacements.get(i));
+            assertEquals(text + " " + edits.size(), expected, applier.apply(text));
+        }
+    }
+
+    @Test
+    public void testInsertAndReplaceAtSameOffsetKeepTheirOrder() {
+        final EditApplier applier = new EditApplier();
+        applier.add(4, 0, "X");
+        applier.add(4, 2, "Y");
+        assertEquals("abcdXYgh", applier.apply("abcdefgh"));
+
+        applier.clear();
+        applier.add(6, 1, "Z");
+        applier.add(4, 0, "X");
+        applier.add(4, 2, "Y");
+        assertEquals("abcdXYZh", applier.apply("abcdefgh"));
+    }
+
+    @Test
+    public void testEditOutsideTextIsRejected() {
+        final EditApplier applier = new EditApplier();
+        applier.add(6, 3, "X");
+        try {
+            applier.apply("abcdefgh");
+            fail("Edit past the end of the text was applied");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+
+        applier.clear();
+        applier.add(2, -1, "X");
+        try {
+            applier.apply("abcdefgh");
+            fail("Edit of negative length was applied");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testOverlappingEditsAreRejected() {
+        final EditApplier applier = new EditApplier();
+        applier.add(5, 2, "X");
+        applier.add(2, 4, "Y");
+        try {
+            applier.apply("abcdefgh");
+            fail("Overlapping edits were applied");
+        } catch (final IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testIneffectiveEditsReturnTheSameText() {
+        final String text = new String("abcdefgh");
+        final EditApplier applier = new EditApplier();
+        assertSame(text, applier.apply(text));
+
+        applier.add(0, 0, "");
+        applier.add(2, 3, "cde");
+        applier.add(7, 1, "h");
+        assertSame(text, applier.apply(text));
+
+        applier.add(8, 0, "i");
+        assertEquals("abcdefghi", applier.apply(text));
+    }
+}
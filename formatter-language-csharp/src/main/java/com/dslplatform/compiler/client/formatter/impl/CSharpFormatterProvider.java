@@ -0,0 +1,24 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.FormatterProvider;
+import com.dslplatform.compiler.client.formatter.Logger;
+
+import java.util.Properties;
+
+public class CSharpFormatterProvider implements FormatterProvider {
+    @Override
+    public String[] getExtensions() {
+        return new String[] { "cs" };
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public Formatter createFormatter(final Logger logger, final Properties properties) {
+        return new CSharpCodeFormatter(logger);
+    }
+}
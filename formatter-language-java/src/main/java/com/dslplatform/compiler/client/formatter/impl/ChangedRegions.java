@@ -0,0 +1,259 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.jface.text.Region;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Regions of a source which have to be formatted, given the formatted output of its previous
+ * version: lines found unchanged in the previous output are already formatted, while changed
+ * lines (and the lines around removed ones) are widened to whole statements, and changes
+ * within the body of a member to the whole member, so that the formatter sees every line it
+ * could join or indent differently (e.g. statements under a new unbraced {@code if}). An
+ * unchanged line whose brace depth differs from the one it had in the previous output (e.g.
+ * when existing members are wrapped in a new class) is indented differently, so it counts
+ * as changed too.
+ *
+ * <p>Lines are matched with the greedy O((N+M)D) diff of Myers, after trimming the common
+ * prefix and suffix. When the sources differ in too many lines, formatting the whole source
+ * is cheaper and {@code null} is returned instead.
+ */
+final class ChangedRegions {
+    private ChangedRegions() {}
+
+    /** Upper bound on the number of line insertions and deletions which are diffed. */
+    private static final int MAX_DIFFERENCES = 1000;
+
+    private static String[] splitLines(final String text) {
+        final List<String> lines = new ArrayList<String>();
+        int start = 0;
+        while (start < text.length()) {
+            final int newline = text.indexOf('\n', start);
+            final int end = newline == -1 ? text.length() : newline + 1;
+            lines.add(text.substring(start, end));
+            start = end;
+        }
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * Returns the regions of the code which differ from the previous output, an empty array
+     * if there are none, or {@code null} if the whole code should be formatted.
+     */
+    public static IRegion[] find(final String previous, final String code) {
+        final String[] before = splitLines(previous);
+        final String[] after = splitLines(code);
+        if (after.length == 0) return null;
+
+        int prefix = 0;
+        while (prefix < before.length && prefix < after.length && before[prefix].equals(after[prefix])) prefix++;
+        int suffix = 0;
+        while (suffix < before.length - prefix && suffix < after.length - prefix
+                && before[before.length - 1 - suffix].equals(after[after.length - 1 - suffix])) suffix++;
+
+        // changed[i] marks a line of the code which is not in the previous output,
+        // removed[i] marks previous lines missing just before line i
+        final boolean[] changed = new boolean[after.length];
+        final boolean[] removed = new boolean[after.length + 1];
+        final boolean[] deleted = new boolean[before.length];
+        if (!diff(before, prefix, before.length - suffix, after, prefix, after.length - suffix, changed, removed, deleted)) {
+            return null;
+        }
+
+        final int[] beforeDepths = braceDepths(before);
+        final int[] afterDepths = braceDepths(after);
+        if (beforeDepths == null || afterDepths == null) return null;
+        for (int i = 0, j = 0; i < after.length; i++) {
+            if (changed[i]) continue;
+            while (deleted[j]) j++;
+            if (afterDepths[i] != beforeDepths[j]) changed[i] = true;
+            j++;
+        }
+
+        int changedLines = 0;
+        for (final boolean line : changed) {
+            if (line) changedLines++;
+        }
+        if (changedLines * 2 > after.length) return null;
+
+        return toRegions(after, afterDepths, changed, removed);
+    }
+
+    /** Marks the differences between the two line ranges, returning false if there are too many. */
+    private static boolean diff(
+            final String[] a,
+            final int aStart,
+            final int aEnd,
+            final String[] b,
+            final int bStart,
+            final int bEnd,
+            final boolean[] changed,
+            final boolean[] removed,
+            final boolean[] deleted) {
+        final int n = aEnd - aStart;
+        final int m = bEnd - bStart;
+        final int max = Math.min(n + m, MAX_DIFFERENCES);
+
+        // furthest x reached on every diagonal k = x - y, and a copy of it after every step d
+        final int offset = max + 1;
+        final int[] v = new int[2 * max + 3];
+        final List<int[]> trace = new ArrayList<int[]>();
+
+        for (int d = 0; d <= max; d++) {
+            for (int k = -d; k <= d; k += 2) {
+                int x = k == -d || (k != d && v[offset + k - 1] < v[offset + k + 1])
+                        ? v[offset + k + 1]
+                        : v[offset + k - 1] + 1;
+                int y = x - k;
+                while (x < n && y < m && a[aStart + x].equals(b[bStart + y])) {
+                    x++;
+                    y++;
+                }
+                v[offset + k] = x;
+
+                if (x >= n && y >= m) {
+                    backtrack(trace, n, m, d, aStart, bStart, changed, removed, deleted);
+                    return true;
+                }
+            }
+            trace.add(Arrays.copyOfRange(v, offset - d, offset + d + 1));
+        }
+        return false;
+    }
+
+    private static void backtrack(
+            final List<int[]> trace,
+            final int n,
+            final int m,
+            final int steps,
+            final int aStart,
+            final int bStart,
+            final boolean[] changed,
+            final boolean[] removed,
+            final boolean[] deleted) {
+        int x = n;
+        int y = m;
+        for (int d = steps; d > 0; d--) {
+            // the copy after step d - 1 covers the diagonals -(d - 1) to d - 1
+            final int[] previous = trace.get(d - 1);
+            final int k = x - y;
+            final boolean down = k == -d || (k != d && previous[k - 1 + d - 1] < previous[k + 1 + d - 1]);
+            final int previousK = down ? k + 1 : k - 1;
+            final int previousX = previous[previousK + d - 1];
+            final int previousY = previousX - previousK;
+
+            if (down) {
+                changed[bStart + previousY] = true;
+            } else {
+                removed[bStart + previousY] = true;
+                deleted[aStart + previousX] = true;
+            }
+            x = previousX;
+            y = previousY;
+        }
+    }
+
+    /**
+     * Returns the depth of braces at the start of every line, ignoring the ones in comments
+     * and literals, or {@code null} if the braces do not balance.
+     */
+    private static int[] braceDepths(final String[] lines) {
+        final int[] depths = new int[lines.length + 1];
+        int depth = 0;
+        boolean inComment = false;
+        for (int i = 0; i < lines.length; i++) {
+            depths[i] = depth;
+            final String line = lines[i];
+            char quote = 0;
+            for (int c = 0; c < line.length(); c++) {
+                final char ch = line.charAt(c);
+                final char next = c + 1 < line.length() ? line.charAt(c + 1) : 0;
+                if (inComment) {
+                    if (ch == '*' && next == '/') {
+                        inComment = false;
+                        c++;
+                    }
+                } else if (quote != 0) {
+                    if (ch == '\\') c++;
+                    else if (ch == quote) quote = 0;
+                } else if (ch == '/' && next == '/') {
+                    break;
+                } else if (ch == '/' && next == '*') {
+                    inComment = true;
+                    c++;
+                } else if (ch == '"' || ch == '\'') {
+                    quote = ch;
+                } else if (ch == '{') {
+                    depth++;
+                } else if (ch == '}') {
+                    if (--depth < 0) return null;
+                }
+            }
+        }
+        depths[lines.length] = depth;
+        return depth == 0 && !inComment ? depths : null;
+    }
+
+    private static boolean endsStatement(final String line) {
+        final String trimmed = line.trim();
+        return trimmed.isEmpty()
+                || trimmed.endsWith(";")
+                || trimmed.endsWith("{")
+                || trimmed.endsWith("}")
+                || trimmed.endsWith("*/");
+    }
+
+    private static IRegion[] toRegions(
+            final String[] lines,
+            final int[] depths,
+            final boolean[] changed,
+            final boolean[] removed) {
+        final int[] lineStarts = new int[lines.length + 1];
+        for (int i = 0; i < lines.length; i++) {
+            lineStarts[i + 1] = lineStarts[i] + lines[i].length();
+        }
+
+        // line ranges of the regions, merged as soon as they touch
+        final List<int[]> spans = new ArrayList<int[]>();
+        for (int i = 0; i <= lines.length; i++) {
+            final boolean lineChanged = i < lines.length && changed[i];
+            if (!lineChanged && !removed[i]) continue;
+
+            // a changed line is formatted along with its neighbours, a removal joins the lines around it
+            int start = Math.max(0, i - 1);
+            int end = Math.min(lines.length, lineChanged ? i + 2 : i + 1);
+            while (true) {
+                while (start > 0 && !endsStatement(lines[start - 1])) start--;
+                while (end < lines.length && !endsStatement(lines[end - 1])) end++;
+
+                // covers whole blocks, and the whole member when the change is inside one
+                int depth = 1;
+                for (int line = start; line <= end; line++) depth = Math.min(depth, depths[line]);
+                int blockStart = start;
+                int blockEnd = end;
+                while (depths[blockStart] > depth) blockStart--;
+                while (depths[blockEnd] > depth) blockEnd++;
+                if (blockStart == start && blockEnd == end) break;
+                start = blockStart;
+                end = blockEnd;
+            }
+
+            while (!spans.isEmpty() && start <= spans.get(spans.size() - 1)[1]) {
+                final int[] last = spans.remove(spans.size() - 1);
+                start = Math.min(start, last[0]);
+                end = Math.max(end, last[1]);
+            }
+            spans.add(new int[] { start, end });
+        }
+
+        final IRegion[] regions = new IRegion[spans.size()];
+        for (int i = 0; i < regions.length; i++) {
+            final int[] span = spans.get(i);
+            regions[i] = new Region(lineStarts[span[0]], lineStarts[span[1]] - lineStarts[span[0]]);
+        }
+        return regions;
+    }
+}
@@ -1,16 +1,22 @@
 package com.dslplatform.compiler.client.formatter.impl;
 
-import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.EditApplier;
+import com.dslplatform.compiler.client.formatter.IncrementalFormatter;
 import com.dslplatform.compiler.client.formatter.Logger;
 import org.eclipse.jdt.core.ToolFactory;
 import org.eclipse.jdt.core.formatter.CodeFormatter;
 import org.eclipse.jface.text.BadLocationException;
 import org.eclipse.jface.text.Document;
+import org.eclipse.jface.text.IRegion;
+import org.eclipse.text.edits.DeleteEdit;
+import org.eclipse.text.edits.InsertEdit;
+import org.eclipse.text.edits.MultiTextEdit;
+import org.eclipse.text.edits.ReplaceEdit;
 import org.eclipse.text.edits.TextEdit;
 
 import java.util.Properties;
 
-public class JavaCodeFormatter implements Formatter {
+public class JavaCodeFormatter implements IncrementalFormatter {
     private final Logger logger;
     private final CodeFormatter codeFormatter;
     private final String newline;
@@ -21,16 +27,73 @@ public class JavaCodeFormatter implements Formatter {
         this.newline = newline;
     }
 
+    private static final int KIND = CodeFormatter.K_COMPILATION_UNIT | CodeFormatter.F_INCLUDE_COMMENTS;
+
     @Override
     public String format(final String context, final String code) {
+        return format(context, code, null);
+    }
+
+    /** Formats only the regions which differ from the previous output, see {@link ChangedRegions}. */
+    @Override
+    public String format(final String context, final String code, final String previous) {
         logger.info("Formatting Java source: {}", context);
 
-        final TextEdit edits = codeFormatter.format(CodeFormatter.K_COMPILATION_UNIT | CodeFormatter.F_INCLUDE_COMMENTS, code, 0, code.length(), 0, newline);
+        final IRegion[] regions = previous != null ? ChangedRegions.find(previous, code) : null;
+        final TextEdit edits;
+        if (regions == null) {
+            edits = codeFormatter.format(KIND, code, 0, code.length(), 0, newline);
+        } else if (regions.length == 0) {
+            logger.debug("Unchanged since it was last formatted: {}", context);
+            return code;
+        } else {
+            logger.debug("Formatting {} changed regions of {}", regions.length, context);
+            edits = codeFormatter.format(KIND, code, regions, 0, newline);
+        }
         if (edits == null || !edits.hasChildren()) {
             logger.debug("No need for format: {}", context);
             return code;
         }
 
+        final EditApplier applier = new EditApplier();
+        if (!collect(edits, applier)) return applyToDocument(context, code, edits);
+
+        try {
+            final String formatted = applier.apply(code);
+            if (formatted == code) logger.debug("No effective change in {}", context);
+            return formatted;
+        } catch (final IllegalArgumentException e) {
+            logger.error("Could not apply edits to {}: {}", context, e);
+            return code;
+        }
+    }
+
+    /**
+     * Flattens the edit tree into the applier, returning {@code false} if it contains edits
+     * other than replacements, insertions and deletions (which the formatter does not produce).
+     */
+    private static boolean collect(final TextEdit edit, final EditApplier applier) {
+        if (edit instanceof MultiTextEdit) {
+            for (final TextEdit child : edit.getChildren()) {
+                if (!collect(child, applier)) return false;
+            }
+            return true;
+        }
+        if (edit.hasChildren()) return false;
+
+        if (edit instanceof ReplaceEdit) {
+            applier.add(edit.getOffset(), edit.getLength(), ((ReplaceEdit) edit).getText());
+        } else if (edit instanceof InsertEdit) {
+            applier.add(edit.getOffset(), 0, ((InsertEdit) edit).getText());
+        } else if (edit instanceof DeleteEdit) {
+            applier.add(edit.getOffset(), edit.getLength(), "");
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    private String applyToDocument(final String context, final String code, final TextEdit edits) {
         final Document document = new Document(code);
         try {
             edits.apply(document);
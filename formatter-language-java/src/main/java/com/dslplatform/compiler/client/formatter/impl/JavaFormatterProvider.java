@@ -0,0 +1,25 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.FormatterProvider;
+import com.dslplatform.compiler.client.formatter.Logger;
+
+import java.util.Properties;
+
+public class JavaFormatterProvider implements FormatterProvider {
+    @Override
+    public String[] getExtensions() {
+        return new String[] { "java" };
+    }
+
+    /** The Eclipse code formatter keeps the state of the compilation unit it is formatting. */
+    @Override
+    public boolean isThreadSafe() {
+        return false;
+    }
+
+    @Override
+    public Formatter createFormatter(final Logger logger, final Properties properties) {
+        return new JavaCodeFormatter(logger, properties, "\n");
+    }
+}
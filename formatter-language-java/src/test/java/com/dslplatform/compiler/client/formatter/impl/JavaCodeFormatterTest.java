@@ -0,0 +1,173 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Logger;
+import org.eclipse.jdt.core.formatter.DefaultCodeFormatterConstants;
+import org.eclipse.jface.text.IRegion;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.*;
+
+/** Checks that formatting only what changed gives the same output as formatting everything. */
+public class JavaCodeFormatterTest {
+    private static final Logger logger = new Logger() {
+        public void debug(final String format, final Object... params) {}
+        public void info(final String format, final Object... params) {}
+        public void error(final String format, final Object... params) {}
+    };
+
+    private static final String SOURCE =
+            "package model;\n" +
+            "\n" +
+            "import java.util.List;\n" +
+            "\n" +
+            "/**\n" +
+            " * A person.\n" +
+            " */\n" +
+            "public class Person   implements java.io.Serializable{\n" +
+            "private String name;\n" +
+            "private int count;\n" +
+            "private List<String> tags;\n" +
+            "\n" +
+            "public String getName(){return name;}\n" +
+            "\n" +
+            "public void setName(final String name){\n" +
+            "this.name=name;\n" +
+            "}\n" +
+            "\n" +
+            "public void reset() {\n" +
+            "name = null;\n" +
+            "count = 0;\n" +
+            "tags = null;\n" +
+            "count--;\n" +
+            "}\n" +
+            "\n" +
+            "public List<String> getTags() {\n" +
+            "    return tags;\n" +
+            "}\n" +
+            "\n" +
+            "@Override\n" +
+            "public String toString() {\n" +
+            "return \"Person(\" + name + \", \" + count + \", \" + tags + \")\";\n" +
+            "}\n" +
+            "}\n";
+
+    private JavaCodeFormatter formatter;
+    private String previous;
+
+    @Before
+    public void setUp() {
+        final Properties properties = new Properties();
+        // the settings are a raw map of option names to values
+        for (final Object entry : DefaultCodeFormatterConstants.getEclipseDefaultSettings().entrySet()) {
+            final Map.Entry<?, ?> setting = (Map.Entry<?, ?>) entry;
+            properties.setProperty((String) setting.getKey(), (String) setting.getValue());
+        }
+        properties.setProperty("org.eclipse.jdt.core.compiler.compliance", "1.6");
+        properties.setProperty("org.eclipse.jdt.core.compiler.source", "1.6");
+        properties.setProperty("org.eclipse.jdt.core.compiler.codegen.targetPlatform", "1.6");
+
+        formatter = new JavaCodeFormatter(logger, properties, "\n");
+        previous = formatter.format("Person.java", SOURCE);
+        assertFalse(SOURCE.equals(previous));
+    }
+
+    private static String insertAfter(final String text, final String anchor, final String insert) {
+        final int index = text.indexOf(anchor);
+        assertTrue(anchor, index != -1);
+        return text.substring(0, index + anchor.length()) + insert + text.substring(index + anchor.length());
+    }
+
+    private static String replace(final String text, final String target, final String replacement) {
+        assertTrue(target, text.contains(target));
+        return text.replace(target, replacement);
+    }
+
+    private void assertSameAsFullFormat(final String code) {
+        assertEquals(formatter.format("Person.java", code), formatter.format("Person.java", code, previous));
+    }
+
+    private static int totalLength(final IRegion[] regions) {
+        int length = 0;
+        for (final IRegion region : regions) length += region.getLength();
+        return length;
+    }
+
+    @Test
+    public void testUnchangedSource() {
+        assertArrayEquals(new IRegion[0], ChangedRegions.find(previous, previous));
+        assertSameAsFullFormat(previous);
+    }
+
+    @Test
+    public void testAddedProperty() {
+        final String code = insertAfter(
+                insertAfter(previous, "private List<String> tags;\n", "private   long age ;\n"),
+                "return tags;\n\t}\n",
+                "public long getAge(){return age;}\n  public void setAge(long age){this.age=age;}\n");
+
+        final IRegion[] regions = ChangedRegions.find(previous, code);
+        assertNotNull(regions);
+        assertEquals(2, regions.length);
+        assertTrue(totalLength(regions) < code.length() / 2);
+        assertSameAsFullFormat(code);
+    }
+
+    @Test
+    public void testChangedMethodBody() {
+        assertSameAsFullFormat(replace(previous, "return name;", "return   name == null ? \"\" :name.trim( ) ;"));
+    }
+
+    @Test
+    public void testChangedStatementSpanningLines() {
+        assertSameAsFullFormat(replace(previous, "\" + count + \", \"", "\"\n+ count\n+ \", \""));
+    }
+
+    @Test
+    public void testStatementsWrappedInNewBlock() {
+        final String code = insertAfter(
+                insertAfter(previous, "public void reset() {\n", "if (name != null) {\n"),
+                "count--;\n",
+                "}\n");
+        assertSameAsFullFormat(code);
+    }
+
+    @Test
+    public void testMembersWrappedInNewClass() {
+        final String code = insertAfter(
+                insertAfter(previous, "private List<String> tags;\n", "\n  static class Inner {\n"),
+                "return tags;\n\t}\n",
+                "}\n");
+        assertSameAsFullFormat(code);
+    }
+
+    @Test
+    public void testBlockUnwrapped() {
+        final String wrapped = insertAfter(
+                insertAfter(previous, "public void reset() {\n", "if (name != null) {\n"),
+                "count--;\n",
+                "}\n");
+        previous = formatter.format("Person.java", wrapped);
+        assertSameAsFullFormat(replace(replace(previous, "\t\tif (name != null) {\n", ""), "count--;\n\t\t}\n", "count--;\n"));
+    }
+
+    @Test
+    public void testRemovedMember() {
+        assertSameAsFullFormat(replace(previous, "\tprivate int count;\n", ""));
+    }
+
+    @Test
+    public void testChangedComment() {
+        assertSameAsFullFormat(replace(previous, " * A person.\n", " *   A person,   with a name\n *and tags.\n"));
+    }
+
+    @Test
+    public void testUnrelatedPreviousFormatsEverything() {
+        previous = "class Other {\n}\n";
+        assertNull(ChangedRegions.find(previous, SOURCE));
+        assertSameAsFullFormat(SOURCE);
+    }
+}
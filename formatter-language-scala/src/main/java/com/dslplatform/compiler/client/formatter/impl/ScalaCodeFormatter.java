@@ -1,14 +1,15 @@
 package com.dslplatform.compiler.client.formatter.impl;
 
+import com.dslplatform.compiler.client.formatter.EditApplier;
 import com.dslplatform.compiler.client.formatter.Formatter;
 import com.dslplatform.compiler.client.formatter.Logger;
 import scala.Some;
+import scala.collection.Iterator;
 import scala.collection.immutable.List;
 import scalariform.formatter.ScalaFormatter;
 import scalariform.formatter.preferences.IFormattingPreferences;
 import scalariform.formatter.preferences.PreferencesImporterExporter;
 import scalariform.utils.TextEdit;
-import scalariform.utils.TextEditProcessor;
 
 import java.util.Properties;
 
@@ -39,7 +40,15 @@ public class ScalaCodeFormatter implements Formatter {
             return code;
         }
 
-        final String formatted = TextEditProcessor.runEdits(code, edits);
-        return code.equals(formatted) ? code : formatted;
+        // same result as TextEditProcessor.runEdits, without copying the text for every edit
+        final EditApplier applier = new EditApplier();
+        for (final Iterator<TextEdit> i = edits.iterator(); i.hasNext(); ) {
+            final TextEdit edit = i.next();
+            applier.add(edit.position(), edit.length(), edit.replacement());
+        }
+
+        final String formatted = applier.apply(code);
+        if (formatted == code) logger.debug("No effective change in {}", context);
+        return formatted;
     }
 }
@@ -0,0 +1,26 @@
+package com.dslplatform.compiler.client.formatter.impl;
+
+import com.dslplatform.compiler.client.formatter.Formatter;
+import com.dslplatform.compiler.client.formatter.FormatterProvider;
+import com.dslplatform.compiler.client.formatter.Logger;
+
+import java.util.Properties;
+
+public class ScalaFormatterProvider implements FormatterProvider {
+    private static final String SCALA_VERSION = "2.11.8";
+
+    @Override
+    public String[] getExtensions() {
+        return new String[] { "scala" };
+    }
+
+    @Override
+    public boolean isThreadSafe() {
+        return true;
+    }
+
+    @Override
+    public Formatter createFormatter(final Logger logger, final Properties properties) {
+        return new ScalaCodeFormatter(logger, properties, "\n", SCALA_VERSION);
+    }
+}